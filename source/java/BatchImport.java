@@ -0,0 +1,260 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.*;
+import org.rsna.ui.GeneralFileFilter;
+import org.rsna.util.FileUtil;
+import org.rsna.util.StringUtil;
+
+/**
+ * A command-line entry point which imports files without the user
+ * interface. It runs the same pipeline as the Directory tab, using the
+ * configuration, scripts, database, and Index in the current directory,
+ * and writes a summary of the run which can be read by scripts.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -Djava.awt.headless=true -cp Deidentifier.jar org.jp.deidentifier.BatchImport
+ *      [-s] [-v] [-progress] [-threads n] [-output dir] [-filter file]
+ *      [-filterSRs yes|no] [-filterSCs yes|no] [-acceptRFs yes|no]
+ *      [-dedup uid|hash|none] [-clearInstances] [-summary file] path...
+ * </pre>
+ * <ul>
+ * <li>-s: process subdirectories
+ * <li>-v: list the result of each file on the standard output, one tab-separated line per file
+ * <li>-progress: count the files while importing them, and write the progress,
+ * throughput, and estimated time remaining to the standard error every ten seconds
+ * <li>-threads: the number of worker threads (default: the importThreads property)
+ * <li>-output: the output directory for this run (default: the outputDir property)
+ * <li>-filter: the filter script (default: filter.script, if it exists)
+ * <li>-filterSRs: whether to reject Structured Reports (default: the filterSRs property, or yes)
+ * <li>-filterSCs: whether to reject Secondary Captures (default: the filterSCs property, or yes)
+ * <li>-acceptRFs: whether to accept reformatted Secondary Captures (default: the acceptRFs property, or yes)
+ * <li>-dedup: how instances already imported are recognized (default: the dedup property, or none)
+ * <li>-clearInstances: remove all the instances from the index before importing,
+ * so instances imported before are not skipped as duplicates
+ * <li>-summary: the file to receive the summary (default: the standard output)
+ * </ul>
+ * If an import is interrupted, running it again skips the files that
+ * were completed before the interruption.
+ * <p>
+ * The exit status is 0 if every file was imported or rejected, 1 if any
+ * file failed or caused an error, and 2 if the arguments are invalid.
+ */
+public class BatchImport implements ImportEngine.Listener {
+
+	static final Logger logger = Logger.getLogger(BatchImport.class);
+
+	boolean subdirectories = false;
+	boolean verbose = false;
+	boolean showProgress = false;
+	int threads = 0;
+	File outputDir = null;
+	File filterFile = null;
+	String filterSRs = null;
+	String filterSCs = null;
+	String acceptRFs = null;
+	String dedup = null;
+	boolean clearInstances = false;
+	File summaryFile = null;
+	LinkedList<File> paths = new LinkedList<File>();
+	ImportSummary summary;
+	ImportProgress progress = null;
+	PrintStream out = System.out;
+
+	/**
+	 * The main method to run an import.
+	 * @param args the list of arguments from the command line.
+	 */
+	public static void main(String args[]) {
+		Logger.getRootLogger().addAppender(
+				new ConsoleAppender(
+					new PatternLayout("%d{HH:mm:ss} %-5p [%c{1}] %m%n"),
+					ConsoleAppender.SYSTEM_ERR));
+		Logger.getRootLogger().setLevel(Level.WARN);
+		BatchImport batchImport = new BatchImport();
+		if (!batchImport.parse(args)) {
+			usage();
+			System.exit(2);
+		}
+		System.exit(batchImport.run());
+	}
+
+	static void usage() {
+		System.err.println(
+			"Usage: BatchImport [-s] [-v] [-progress] [-threads n] [-output dir] [-filter file]\n"
+			+ "                   [-filterSRs yes|no] [-filterSCs yes|no] [-acceptRFs yes|no]\n"
+			+ "                   [-dedup uid|hash|none] [-clearInstances] [-summary file] path...");
+	}
+
+	/**
+	 * Parse the command-line arguments.
+	 * @param args the arguments.
+	 * @return true if the arguments are valid; false otherwise.
+	 */
+	public boolean parse(String[] args) {
+		try {
+			for (int i=0; i<args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-s")) subdirectories = true;
+				else if (arg.equals("-v")) verbose = true;
+				else if (arg.equals("-progress")) showProgress = true;
+				else if (arg.equals("-threads")) threads = StringUtil.getInt(args[++i], 0);
+				else if (arg.equals("-output")) outputDir = new File(args[++i]);
+				else if (arg.equals("-filter")) filterFile = new File(args[++i]);
+				else if (arg.equals("-filterSRs")) filterSRs = getYesNo(arg, args[++i]);
+				else if (arg.equals("-filterSCs")) filterSCs = getYesNo(arg, args[++i]);
+				else if (arg.equals("-acceptRFs")) acceptRFs = getYesNo(arg, args[++i]);
+				else if (arg.equals("-dedup")) dedup = args[++i];
+				else if (arg.equals("-clearInstances")) clearInstances = true;
+				else if (arg.equals("-summary")) summaryFile = new File(args[++i]);
+				else if (arg.startsWith("-")) {
+					System.err.println("Unknown option: "+arg);
+					return false;
+				}
+				else {
+					File path = new File(arg);
+					if (!path.exists()) {
+						System.err.println("File not found: "+arg);
+						return false;
+					}
+					paths.add(path);
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException ex) {
+			System.err.println("Missing value for "+args[args.length - 1]);
+			return false;
+		}
+		catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			return false;
+		}
+		if ((filterFile != null) && !filterFile.exists()) {
+			System.err.println("Filter script not found: "+filterFile);
+			return false;
+		}
+		return !paths.isEmpty();
+	}
+
+	//Check the value of a yes/no option.
+	private static String getYesNo(String option, String value) {
+		if (value.equals("yes") || value.equals("no")) return value;
+		throw new IllegalArgumentException("The value of "+option+" must be yes or no: "+value);
+	}
+
+	//Get a filter setting from its option, or from the property
+	//saved by the Filter tab if the option was not supplied.
+	private String getSetting(String name, String option) {
+		if (option != null) return option;
+		return Configuration.getInstance().getProps().getProperty(name, "yes");
+	}
+
+	/**
+	 * Import the files and write the summary.
+	 * @return the exit status.
+	 */
+	public int run() {
+		Configuration config = Configuration.getInstance();
+		if (config.getIntegerTable() == null) {
+			System.err.println("Unable to open the database in "+config.getDatabaseDir());
+			return 1;
+		}
+		config.initialize();
+		if (outputDir != null) config.setOutputDir(outputDir);
+		if (threads < 1) threads = config.getImportThreads();
+		if (dedup == null) dedup = config.get("dedup");
+
+		//Use the filter settings saved from the Filter tab,
+		//unless they are overridden by the options.
+		if (filterFile == null) filterFile = new File(Configuration.filterScriptFile);
+		String filterScript = filterFile.exists() ? FileUtil.getText(filterFile) : "";
+		boolean filterSRs = !getSetting("filterSRs", this.filterSRs).equals("no");
+		boolean filterSCs = !getSetting("filterSCs", this.filterSCs).equals("no");
+		boolean acceptRFs = !getSetting("acceptRFs", this.acceptRFs).equals("no");
+		GeneralFileFilter filter = new GeneralFileFilter();
+		filter.setExtensions(config.getProps().getProperty("extensions", "*"));
+
+		summary = new ImportSummary();
+		ImportJournal journal = ImportJournal.getInstance();
+		java.util.Timer timer = null;
+		try {
+			if (clearInstances) {
+				int count = Index.getInstance().clearInstances();
+				System.err.println(count + " instances cleared from the index");
+			}
+			if (showProgress) {
+				progress = new ImportProgress();
+				progress.startPrescan(paths.toArray(new File[paths.size()]), subdirectories, filter);
+				timer = new java.util.Timer(true);
+				timer.schedule(new TimerTask() {
+					public void run() { System.err.println(progress.toString()); }
+				}, 10000, 10000);
+			}
+			for (File path : paths) {
+				ImportEngine engine = new ImportEngine(threads, this);
+				engine.setFilter(filterScript, filterSRs, filterSCs, acceptRFs);
+				engine.setDedup(dedup);
+				engine.setProgress(progress);
+				engine.importFiles(path, subdirectories, filter);
+			}
+			//The whole import is done, so there is nothing to resume.
+			journal.clear();
+		}
+		finally {
+			if (timer != null) {
+				timer.cancel();
+				progress.finish();
+				System.err.println(progress.toString());
+			}
+			summary.finish();
+			journal.close();
+			config.getIntegerTable().close();
+			Index.getInstance().close();
+		}
+		writeSummary();
+		return ((summary.getFailedCount() + summary.getErrorCount()) == 0) ? 0 : 1;
+	}
+
+	/**
+	 * Count the result of a file and list it if required.
+	 * Note: calls are made from the worker threads.
+	 * @param result the result.
+	 */
+	public void fileProcessed(ImportResult result) {
+		summary.fileProcessed(result);
+		if (verbose) {
+			String message = result.getMessage();
+			if (message == null) message = "";
+			int k = message.indexOf("\n");
+			if (k >= 0) message = message.substring(0, k).trim();
+			synchronized (out) {
+				out.println(result.getStatus() + "\t" + result.getFile() + "\t" + message);
+			}
+		}
+	}
+
+	private void writeSummary() {
+		if (summaryFile == null) {
+			out.print(summary.toString());
+			out.flush();
+		}
+		else {
+			Writer writer = null;
+			try {
+				writer = new OutputStreamWriter(new FileOutputStream(summaryFile), FileUtil.utf8);
+				summary.write(writer);
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to write the summary to "+summaryFile, ex);
+			}
+			finally { FileUtil.close(writer); }
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.File;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.LookupTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
+
+/**
+ * The DICOM anonymizer script and lookup table, converted to the
+ * Properties objects required by the DICOMAnonymizer. An instance is
+ * obtained once at the start of an import run and used for every file
+ * in the run. The last instance is kept and reused for subsequent runs
+ * until either file changes on disk.
+ */
+public class CompiledScript {
+
+	static final Logger logger = Logger.getLogger(CompiledScript.class);
+
+	static CompiledScript compiledScript = null;
+
+	File scriptFile;
+	File lookupTableFile;
+	long scriptVersion;
+	long lookupTableVersion;
+	Properties scriptProps;
+	Properties lookupTableProps;
+	String spokeName;
+
+	/**
+	 * Get the compiled script for a script file and lookup table file,
+	 * recompiling if either file has changed since the last call.
+	 * @param scriptFile the DICOM anonymizer script file.
+	 * @param lookupTableFile the lookup table file.
+	 * @return the compiled script.
+	 */
+	public static synchronized CompiledScript getInstance(File scriptFile, File lookupTableFile) {
+		if ((compiledScript == null) || !compiledScript.isCurrent(scriptFile, lookupTableFile)) {
+			compiledScript = new CompiledScript(scriptFile, lookupTableFile);
+			logger.debug("Compiled "+scriptFile+" and "+lookupTableFile);
+		}
+		return compiledScript;
+	}
+
+	protected CompiledScript(File scriptFile, File lookupTableFile) {
+		this.scriptFile = scriptFile;
+		this.lookupTableFile = lookupTableFile;
+		this.scriptVersion = getVersion(scriptFile);
+		this.lookupTableVersion = getVersion(lookupTableFile);
+		DAScript dicomScript = DAScript.getInstance(scriptFile);
+		LookupTable lookupTable = LookupTable.getInstance(lookupTableFile);
+		//DAScript and LookupTable defer reloading a file for a few
+		//seconds after it changes; if the instance is stale, make sure
+		//this object is recompiled on the next run.
+		if (dicomScript.lastVersionLoaded < scriptFile.lastModified()) scriptVersion = -1;
+		if (lookupTable.lastVersionLoaded < lookupTableFile.lastModified()) lookupTableVersion = -1;
+		this.scriptProps = dicomScript.toProperties();
+		this.lookupTableProps = lookupTable.getProperties();
+		this.spokeName = scriptProps.getProperty("param.SPOKENAME");
+	}
+
+	/**
+	 * Determine whether this object was compiled from the current
+	 * versions of the specified files.
+	 * @param scriptFile the DICOM anonymizer script file.
+	 * @param lookupTableFile the lookup table file.
+	 * @return true if neither file has changed since this object was compiled.
+	 */
+	public boolean isCurrent(File scriptFile, File lookupTableFile) {
+		return this.scriptFile.equals(scriptFile)
+				&& this.lookupTableFile.equals(lookupTableFile)
+				&& (scriptVersion == getVersion(scriptFile))
+				&& (lookupTableVersion == getVersion(lookupTableFile));
+	}
+
+	//Get a value which changes whenever the file is rewritten.
+	private static long getVersion(File file) {
+		return 31 * file.lastModified() + file.length();
+	}
+
+	public Properties getScriptProperties() {
+		return scriptProps;
+	}
+
+	public Properties getLookupTableProperties() {
+		return lookupTableProps;
+	}
+
+	public String getSpokeName() {
+		return spokeName;
+	}
+}
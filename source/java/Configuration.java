@@ -9,9 +9,13 @@ import java.awt.Color;
 import java.io.File;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
 import org.rsna.ui.ApplicationProperties;
 import org.rsna.util.FileUtil;
 import org.rsna.util.StringUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * The singleton class that encapsulates the configuration of the program.
@@ -24,6 +28,7 @@ public class Configuration {
     public static final String idtablepropfile 	= "idtable.properties";
     public static final String dicomScriptFile	= "dicom-anonymizer.script";
     public static final String lookupTableFile	= "lookup-table.properties";
+    public static final String filterScriptFile	= "filter.script";
     public static final String helpfile 		= "help.html";
     
     public static DeidentifierIntegerTable integerTable = null;
@@ -52,6 +57,13 @@ public class Configuration {
 		databaseDir.mkdirs();
 		try { 
 			integerTable = new DeidentifierIntegerTable(databaseDir);
+			integerTable.setGroupCommit(
+				StringUtil.getInt(props.getProperty("integerCommitCount"), 100),
+				StringUtil.getLong(props.getProperty("integerCommitInterval"), 1000));
+			integerTable.setBlockSize(
+				StringUtil.getInt(props.getProperty("integerBlockSize"), 100));
+			integerTable.setCacheSize(
+				StringUtil.getInt(props.getProperty("integerCacheSize"), 10000));
 			outputDir = home;
 			String odString = props.getProperty("outputDir");
 			if (odString != null) outputDir = new File(odString);
@@ -65,6 +77,70 @@ public class Configuration {
 		catch (Exception ex) { }
 	}
 	
+	/**
+	 * Initialize the SITEID and make sure the DICOM anonymizer script
+	 * reflects it. This must be called once at startup, before any files
+	 * are imported, whether the program is run with or without its UI.
+	 */
+	public void initialize() {
+		//Initialize the SITEID
+		String propsSITEID = props.getProperty("SITEID");
+		if (propsSITEID == null) {
+			long t = System.currentTimeMillis()/60L;
+			propsSITEID = Long.toString(t);
+			propsSITEID = propsSITEID.substring(propsSITEID.length() - 6);
+			props.setProperty("SITEID", propsSITEID);
+			props.store();
+		}
+		File daScriptFile = new File(dicomScriptFile);
+		DAScript daScript = DAScript.getInstance(daScriptFile);
+		Document daDoc = daScript.toXML();
+		Element daRoot = daDoc.getDocumentElement();
+		Node child = daRoot.getFirstChild();
+		String scriptSITEID = null;
+		Element e = null;
+		while (child != null) {
+			if (child.getNodeName().equals("p")) {
+				e = (Element)child;
+				if (e.getAttribute("t").equals("SITEID")) {
+					scriptSITEID = e.getTextContent().trim();
+					break;
+				}
+			}
+			child = child.getNextSibling();
+		}
+		if (scriptSITEID == null) {
+			//Add the SITEID param if it is missing
+			Element x = daDoc.createElement("p");
+			x.setAttribute("t", "SITEID");
+			x.setTextContent(propsSITEID);
+			daRoot.insertBefore(x, daRoot.getFirstChild());
+			FileUtil.setText(daScriptFile, daScript.toXMLString());
+		}
+		else if (!scriptSITEID.equals(propsSITEID)) {
+			//Make sure the script reflects the props SITEID
+			e.setTextContent(propsSITEID);
+			FileUtil.setText(daScriptFile, daScript.toXMLString());
+		}
+		//Force the PatientID script
+		child = daRoot.getFirstChild();
+		while (child != null) {
+			if (child.getNodeName().equals("e")) {
+				Element x = (Element)child;
+				if (x.getAttribute("t").equals("00100020")) {
+					String oldScript = x.getTextContent().trim();
+					String newScript = "@param(@SITEID)-@integer(PatientID,\"ptid\",6)";
+					if (!oldScript.equals(newScript)) {
+						x.setTextContent(newScript);
+						FileUtil.setText(daScriptFile, daScript.toXMLString());
+						break;
+					}
+				}
+			}
+			child = child.getNextSibling();
+		}
+	}
+
 	//If there is a range property, install the range in the
 	//IntegerTable and then delete the property.
 	private void installIntegerRange() {
@@ -95,6 +171,39 @@ public class Configuration {
 		return outputDir;
 	}
 
+	/**
+	 * Get the number of worker threads to use for importing files.
+	 * This is taken from the importThreads property, defaulting to
+	 * the number of processors available to the JVM.
+	 * @return the number of import threads.
+	 */
+	public int getImportThreads() {
+		int n = Runtime.getRuntime().availableProcessors();
+		return Math.max( StringUtil.getInt( props.getProperty("importThreads"), n ), 1 );
+	}
+
+	/**
+	 * Get the number of threads to use for listing the directories of
+	 * an import. This is taken from the scanThreads property, defaulting
+	 * to 4. Listing is limited by the latency of the filesystem rather
+	 * than by the processors, so more threads help on network shares.
+	 * @return the number of scanning threads.
+	 */
+	public int getScanThreads() {
+		return Math.max( StringUtil.getInt( props.getProperty("scanThreads"), 4 ), 1 );
+	}
+
+	/**
+	 * Get the number of threads to use for exporting the frames of an
+	 * image as JPEGs. This is taken from the exportThreads property,
+	 * defaulting to the number of processors available to the JVM.
+	 * @return the number of export threads.
+	 */
+	public int getExportThreads() {
+		int n = Runtime.getRuntime().availableProcessors();
+		return Math.max( StringUtil.getInt( props.getProperty("exportThreads"), n ), 1 );
+	}
+
 	public File getDatabaseDir() {
 		return databaseDir;
 	}
@@ -20,11 +20,6 @@ import org.rsna.util.FileUtil;
 import org.rsna.util.JarUtil;
 import org.rsna.util.StringUtil;
 
-import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-
 /**
  * The DicomEditor program provides a DICOM viewer and
  * element editor plus an anonymizer that can process a
@@ -64,69 +59,7 @@ public class Deidentifier extends JFrame implements ChangeListener {
     public Deidentifier() {
 		super();
 		Configuration config = Configuration.getInstance();
-		
-		//************************************************************
-		//                   Initialization
-		//************************************************************
-		//Initialize the SITEID
-		String propsSITEID = config.getProps().getProperty("SITEID");
-		if (propsSITEID == null) {
-			long t = System.currentTimeMillis()/60L;
-			propsSITEID = Long.toString(t);
-			propsSITEID = propsSITEID.substring(propsSITEID.length() - 6);
-			config.getProps().setProperty("SITEID", propsSITEID);
-			config.store();
-		}
-		File daScriptFile = new File(config.dicomScriptFile);
-		DAScript daScript = DAScript.getInstance(daScriptFile);
-		Document daDoc = daScript.toXML();
-		Element daRoot = daDoc.getDocumentElement();
-		Node child = daRoot.getFirstChild();
-		String scriptSITEID = null;
-		Element e = null;
-		while (child != null) {
-			if (child.getNodeName().equals("p")) {
-				e = (Element)child;
-				if (e.getAttribute("t").equals("SITEID")) {
-					scriptSITEID = e.getTextContent().trim();
-					break;
-				}
-			}
-			child = child.getNextSibling();
-		}
-		if (scriptSITEID == null) {
-			//Add the SITEID param if it is missing
-			Element x = daDoc.createElement("p");
-			x.setAttribute("t", "SITEID");
-			x.setTextContent(propsSITEID);
-			daRoot.insertBefore(x, daRoot.getFirstChild());
-			FileUtil.setText(daScriptFile, daScript.toXMLString());
-		}
-		else if (!scriptSITEID.equals(propsSITEID)) {
-			//Make sure the script reflects the props SITEID
-			e.setTextContent(propsSITEID);
-			FileUtil.setText(daScriptFile, daScript.toXMLString());
-		}
-		//Force the PatientID script
-		child = daRoot.getFirstChild();
-		while (child != null) {
-			if (child.getNodeName().equals("e")) {
-				Element x = (Element)child;
-				if (x.getAttribute("t").equals("00100020")) {
-					String oldScript = x.getTextContent().trim();
-					String newScript = "@param(@SITEID)-@integer(PatientID,\"ptid\",6)";
-					if (!oldScript.equals(newScript)) {
-						x.setTextContent(newScript);
-						FileUtil.setText(daScriptFile, daScript.toXMLString());
-						break;
-					}
-				}
-			}
-			child = child.getNextSibling();
-		}
-		//************************************************************
-		//                   End of initialization
-		//************************************************************
+		config.initialize();
 
 		//Put the build date/time in the window title
 		try {
@@ -168,8 +101,12 @@ public class Deidentifier extends JFrame implements ChangeListener {
 			helpPanel);
 		
 		mainPanel.tabbedPane.addChangeListener(this);
-		sourcePanel.addFileListener(viewerPanel);
-		sourcePanel.addFileListener(editorPanel);
+		//The selected file is parsed once, in the background,
+		//for both the Viewer and the Editor.
+		DicomLoader loader = DicomLoader.getInstance();
+		loader.addListener(viewerPanel);
+		loader.addListener(editorPanel);
+		sourcePanel.addFileListener(loader);
 		pack();
 		positionFrame();
 		setVisible(true);
@@ -222,6 +159,7 @@ public class Deidentifier extends JFrame implements ChangeListener {
 		public void windowClosing(WindowEvent evt) {
 			Configuration config = Configuration.getInstance();
 			config.getIntegerTable().close();
+			ImportJournal.getInstance().close();
 			Index.getInstance().close();
 			Point p = getLocation();
 			config.put("x", Integer.toString(p.x));
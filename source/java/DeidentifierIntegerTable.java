@@ -7,22 +7,54 @@
 
 package org.jp.deidentifier;
 
-import java.io.File;
+import java.io.*;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import jdbm.RecordManager;
 import jdbm.htree.HTree;
 import jdbm.helper.FastIterator;
 import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
 import org.rsna.util.JdbmUtil;
 import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
 
 /**
  * A database for tracking assigned integer replacements for text strings.
+ * <p>
+ * New assignments are committed to the database in groups. Until its group
+ * is committed, each new assignment is held in a write-ahead log, which is
+ * replayed into the database when the table is next opened, so an integer
+ * assigned before a crash of the program or of the system is never reissued.
+ * Each record is forced to the disk before its integer is returned, so every
+ * new assignment still costs one synchronous write while the table is locked:
+ * the group commit replaces a database commit per assignment with an append
+ * and an fsync of the log, which is cheaper, but not free.
+ * <p>
+ * Integers are reserved in blocks. The stored last integer for a type is
+ * advanced past a whole block in one committed write, and the integers in
+ * the block are then assigned from memory. When the table is closed, the
+ * stored value is returned to the last integer actually assigned, so the
+ * numbering has no gaps unless the program crashes.
  */
 public class DeidentifierIntegerTable extends IntegerTable {
 
 	static final Logger logger = Logger.getLogger(DeidentifierIntegerTable.class);
 
+	static final String logName = "integers.wal";
+
+	File logFile;
+	FileOutputStream logStream = null;
+	DataOutputStream log = null;
+	int pending = 0;
+	int commitCount = 1;
+	long commitInterval = 0;
+	int blockSize = 1;
+	Timer timer = null;
+	LRUCache<String,Integer> cache = new LRUCache<String,Integer>(10000);
+	ConcurrentHashMap<String,Counter> counters = new ConcurrentHashMap<String,Counter>();
+
 	/**
 	 * Constructor; create an IntegerTable from a database file.
 	 * @param dir the directory in which the database is to be created.
@@ -30,11 +62,89 @@ public class DeidentifierIntegerTable extends IntegerTable {
 	 */
 	public DeidentifierIntegerTable(File dir) throws Exception {
 		super(dir);
+		logFile = new File(dir, logName);
+		replayLog();
+		openLog();
 		//logTable();
 	}
 
+	/**
+	 * Set the group commit parameters. New assignments are committed
+	 * when the number pending reaches the count, and in any case within
+	 * the interval after they are made.
+	 * @param count the maximum number of assignments in a group. If the
+	 * count is less than 2, each assignment is committed immediately.
+	 * @param interval the maximum time in milliseconds that an assignment
+	 * may remain uncommitted.
+	 */
+	public synchronized void setGroupCommit(int count, long interval) {
+		commitCount = (log != null) ? Math.max(count, 1) : 1;
+		commitInterval = Math.max(interval, 0);
+		if (timer != null) timer.cancel();
+		timer = null;
+		if ((commitCount > 1) && (commitInterval > 0)) {
+			timer = new Timer("IntegerTable commit", true);
+			timer.schedule(new CommitTask(), commitInterval, commitInterval);
+		}
+	}
+
+	class CommitTask extends TimerTask {
+		public void run() {
+			synchronized (DeidentifierIntegerTable.this) {
+				if (pending > 0) commit();
+			}
+		}
+	}
+
+	/**
+	 * Commit any pending assignments.
+	 */
+	public synchronized void commit() {
+		try {
+			recman.commit();
+			pending = 0;
+			//Everything in the log is now in the database.
+			if (logStream != null) logStream.getChannel().truncate(0);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to commit the integer table", ex);
+		}
+	}
+
+	/**
+	 * Set the number of integers reserved at a time for each type.
+	 * @param size the number of integers in a block.
+	 */
+	public void setBlockSize(int size) {
+		blockSize = Math.max(size, 1);
+	}
+
+	/**
+	 * Release the unused integers in the reserved blocks, commit
+	 * any pending assignments, and close the table.
+	 */
+	public void close() {
+		for (Counter counter : counters.values()) {
+			try { counter.release(); }
+			catch (Exception ex) { logger.warn("Unable to release the block for "+counter.lastIntKey); }
+		}
+		synchronized (this) {
+			if (timer != null) timer.cancel();
+			timer = null;
+			commit();
+			logger.info("IntegerTable cache: "+cache);
+			FileUtil.close(log);
+			log = null;
+			logStream = null;
+			super.close();
+			logFile.delete();
+		}
+	}
+
 	/**
 	 * Get a String containing an integer replacement for text of a specified type.
+	 * Replacements which have already been assigned are normally found in an
+	 * in-memory cache, without taking the lock on the table.
 	 * @param type any String identifying the category of text being replaced, for example "ptid".
 	 * @param text the text string to be replaced by an integer string.
 	 * @param width the minimum width of the replacement string. If the width parameter
@@ -42,28 +152,15 @@ public class DeidentifierIntegerTable extends IntegerTable {
 	 * @return the replacement string, with leading zeroes if necessary to pad the
 	 * replacement string to the required width.
 	 */
-	public synchronized String getInteger(String type, String text, int width) {
+	public String getInteger(String type, String text, int width) {
 		try {
 			text = text.trim();
 			type = type.trim();
 			String key = type + "/" + text;
-			Integer value = (Integer)index.get(key);
+			Integer value = cache.get(key);
 			if (value == null) {
-				String lastIntKey = "__" + type + "__";
-				Integer lastInt = (Integer)index.get(lastIntKey);
-				if (lastInt == null) lastInt = new Integer(0);
-				value = new Integer( lastInt.intValue() + 1 );
-				String rangeKey = "<<" + type + ">>";
-				Range range = (Range)index.get(rangeKey);
-				if (range != null) {
-					value = range.skip(value);
-					if (value.intValue() > range.getUpperLimit()) {
-						index.remove(rangeKey);
-					}
-				}
-				index.put(lastIntKey, value);
-				index.put(key, value);
-				recman.commit();
+				value = getValue(type, text, key);
+				cache.put(key, value);
 			}
 			int intValue = value.intValue();
 			String format = (width > 0) ? ("%0"+width+"d") : ("%d");
@@ -74,13 +171,149 @@ public class DeidentifierIntegerTable extends IntegerTable {
 			return "error";
 		}
 	}
+
+	//Get the value assigned to a key from the database,
+	//assigning the next available value if necessary.
+	//Values already in the database are read without taking
+	//the lock for the type. Assignments of new values are
+	//serialized per type, so different types do not contend.
+	private Integer getValue(String type, String text, String key) throws Exception {
+		Integer value = read(key);
+		if (value != null) return value;
+		Counter counter = getCounter(type);
+		synchronized (counter) {
+			value = read(key);
+			if (value == null) {
+				value = Integer.valueOf( counter.next() );
+				assign(type, text, key, value, counter);
+			}
+		}
+		return value;
+	}
+
+	//Get the Counter for a type, loading it if necessary.
+	private Counter getCounter(String type) throws Exception {
+		Counter counter = counters.get(type);
+		if (counter == null) {
+			Counter newCounter = new Counter(type);
+			counter = counters.putIfAbsent(type, newCounter);
+			if (counter == null) counter = newCounter;
+		}
+		return counter;
+	}
+
+	//The database operations. JDBM is not thread-safe,
+	//so these are synchronized on the table itself.
+	private synchronized Integer read(String key) throws Exception {
+		return (Integer)index.get(key);
+	}
+
+	private synchronized void assign(String type, String text, String key, Integer value, Counter counter) throws Exception {
+		if (counter.rangeExhausted) {
+			index.remove(counter.rangeKey);
+			counter.rangeExhausted = false;
+		}
+		index.put(key, value);
+		logAssignment(type, text, value.intValue());
+		if (++pending >= commitCount) commit();
+	}
+
+	/**
+	 * The assignment state for one type: the last integer assigned,
+	 * the last integer in the reserved block, and the range of integers
+	 * to be skipped, if any. Each Counter is its own lock for assignments
+	 * of its type.
+	 */
+	class Counter {
+		String lastIntKey;
+		String rangeKey;
+		int lastInt;
+		int reserved;
+		Range range;
+		boolean rangeExhausted = false;
+
+		public Counter(String type) throws Exception {
+			lastIntKey = "__" + type + "__";
+			rangeKey = "<<" + type + ">>";
+			synchronized (DeidentifierIntegerTable.this) {
+				Integer last = (Integer)index.get(lastIntKey);
+				lastInt = (last != null) ? last.intValue() : 0;
+				range = (Range)index.get(rangeKey);
+			}
+			reserved = lastInt;
+		}
+
+		//Get the next integer, skipping the range if necessary
+		//and reserving a new block when the current one is used up.
+		public int next() throws Exception {
+			Integer value = Integer.valueOf(lastInt + 1);
+			if (range != null) {
+				value = range.skip(value);
+				if (value.intValue() > range.getUpperLimit()) {
+					range = null;
+					rangeExhausted = true;
+				}
+			}
+			if (value.intValue() > reserved) reserve(value.intValue() + blockSize - 1);
+			lastInt = value.intValue();
+			return lastInt;
+		}
+
+		//Durably record that all integers up to a limit are taken.
+		private void reserve(int limit) throws Exception {
+			synchronized (DeidentifierIntegerTable.this) {
+				index.put(lastIntKey, Integer.valueOf(limit));
+				commit();
+			}
+			reserved = limit;
+		}
+
+		//Return the unused part of the block.
+		public synchronized void release() throws Exception {
+			if (reserved > lastInt) {
+				synchronized (DeidentifierIntegerTable.this) {
+					index.put(lastIntKey, Integer.valueOf(lastInt));
+				}
+				reserved = lastInt;
+			}
+		}
+	}
+
+	/**
+	 * Set the maximum number of assignments held in the in-memory cache.
+	 * @param size the maximum number of cached assignments.
+	 */
+	public void setCacheSize(int size) {
+		cache = new LRUCache<String,Integer>(size);
+	}
+
+	/**
+	 * Get the in-memory cache of assignments, for access to its statistics.
+	 * @return the cache.
+	 */
+	public LRUCache<String,Integer> getCache() {
+		return cache;
+	}
 	
-	public synchronized boolean setSkipRange(String type, int n1, int n2) {
+	/**
+	 * Set a range of integers to be skipped in assignments of a type.
+	 * @param type the type.
+	 * @param n1 one end of the range.
+	 * @param n2 the other end of the range.
+	 * @return true if the range was set; false otherwise.
+	 */
+	public boolean setSkipRange(String type, int n1, int n2) {
 		try {
-			String rangeKey = "<<" + type + ">>";
-			Range range = new Range(n1, n2);
-			index.put(rangeKey, range);
-			recman.commit();
+			Counter counter = getCounter(type);
+			synchronized (counter) {
+				Range range = new Range(n1, n2);
+				synchronized (this) {
+					index.put(counter.rangeKey, range);
+					commit();
+				}
+				counter.range = range;
+				counter.rangeExhausted = false;
+			}
 			return true;
 		}
 		catch (Exception ex) { 
@@ -89,6 +322,70 @@ public class DeidentifierIntegerTable extends IntegerTable {
 		}
 	}
 	
+	//Append an assignment to the write-ahead log. The record
+	//is forced to the disk before returning, so it survives a
+	//crash of the program or of the operating system, and the
+	//integer is never returned before it is durable.
+	private void logAssignment(String type, String text, int value) throws Exception {
+		if (log == null) return;
+		log.writeUTF(type);
+		log.writeUTF(text);
+		log.writeInt(value);
+		log.flush();
+		logStream.getChannel().force(false);
+	}
+
+	private void openLog() {
+		try {
+			logStream = new FileOutputStream(logFile, true);
+			log = new DataOutputStream(new BufferedOutputStream(logStream));
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to open the integer table log; assignments will be committed individually.");
+			logStream = null;
+			log = null;
+			commitCount = 1;
+		}
+	}
+
+	//Apply any assignments in the log that did not reach the database.
+	//A partial record at the end of the log is ignored.
+	private void replayLog() throws Exception {
+		if (!logFile.exists()) return;
+		DataInputStream in = null;
+		int count = 0;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+			while (true) {
+				String type, text;
+				int value;
+				try {
+					type = in.readUTF();
+					text = in.readUTF();
+					value = in.readInt();
+				}
+				catch (EOFException eof) { break; }
+				String key = type + "/" + text;
+				if (index.get(key) == null) index.put(key, Integer.valueOf(value));
+				String lastIntKey = "__" + type + "__";
+				Integer lastInt = (Integer)index.get(lastIntKey);
+				if ((lastInt == null) || (lastInt.intValue() < value)) {
+					index.put(lastIntKey, Integer.valueOf(value));
+				}
+				String rangeKey = "<<" + type + ">>";
+				Range range = (Range)index.get(rangeKey);
+				if ((range != null) && (value > range.getUpperLimit())) {
+					index.remove(rangeKey);
+				}
+				count++;
+			}
+		}
+		finally { FileUtil.close(in); }
+		recman.commit();
+		logFile.delete();
+		if (count > 0) logger.warn("Recovered "+count+" integer assignments from the log");
+	}
+
 	private void logTable() {
 		try {
 			logger.info("IntegerTable:");
@@ -0,0 +1,103 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.*;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmElement;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileFormat;
+import org.dcm4che.dict.Tags;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.util.FileUtil;
+
+/**
+ * A lightweight parse of the leading elements of a DICOM file.
+ * Parsing stops at a specified tag, so the rest of the file is
+ * never read.
+ */
+public class DicomHeader {
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	/** The first tag after the elements needed to file an anonymized image. */
+	public static final int afterInstanceNumber = Tags.InstanceNumber + 1;
+
+	File file;
+	Dataset dataset;
+
+	/**
+	 * Class constructor; parse a file up to, but not including, a specified tag.
+	 * @param file the file to parse.
+	 * @param stopTag the tag at which parsing stops.
+	 * @throws Exception if the file cannot be parsed as a DICOM file.
+	 */
+	public DicomHeader(File file, int stopTag) throws Exception {
+		this.file = file;
+		BufferedInputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format: "+file);
+			dataset = oFact.newDataset();
+			parser.setDcmHandler(dataset.getDcmHandler());
+			parser.parseDcmFile(fileFormat, stopTag);
+		}
+		finally { FileUtil.close(in); }
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * Get the value of an element as a String.
+	 * @param tag the tag of the element.
+	 * @return the value of the element, or the empty string if the
+	 * element is missing or was not parsed.
+	 */
+	public String getElementValue(int tag) {
+		DcmElement el = dataset.get(tag);
+		String value = (el != null) ? DicomObject.getElementValue(el, dataset) : null;
+		return (value != null) ? value : "";
+	}
+
+	public String getPatientName() {
+		return getElementValue(Tags.PatientName);
+	}
+
+	public String getPatientID() {
+		return getElementValue(Tags.PatientID);
+	}
+
+	public String getStudyDate() {
+		return getElementValue(Tags.StudyDate);
+	}
+
+	public String getStudyTime() {
+		return getElementValue(Tags.StudyTime);
+	}
+
+	public String getAccessionNumber() {
+		return getElementValue(Tags.AccessionNumber);
+	}
+
+	public String getSeriesNumber() {
+		return getElementValue(Tags.SeriesNumber);
+	}
+
+	public String getInstanceNumber() {
+		return getElementValue(Tags.InstanceNumber);
+	}
+}
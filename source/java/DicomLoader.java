@@ -0,0 +1,159 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ui.FileEvent;
+import org.rsna.ui.FileListener;
+
+/**
+ * A loader which parses the file selected in a file selector on a
+ * background thread and passes the parsed object to all its listeners,
+ * so the file is parsed once for all the panels which display it, and
+ * the user interface does not wait for it. Only the latest selection
+ * matters: requests which are superseded before they start are
+ * abandoned, and results which are superseded before they are delivered
+ * are discarded. The loader also decodes frames for the Viewer on the
+ * same thread, with the same rule. The object is passed to the listeners
+ * as soon as it is parsed; the Viewer then requests the decoding of its
+ * first frame, so the Editor does not wait for the pixels.
+ */
+public class DicomLoader implements FileListener {
+
+	static final Logger logger = Logger.getLogger(DicomLoader.class);
+	static DicomLoader instance = null;
+
+	/**
+	 * The interface for objects which receive the parsed objects.
+	 * Note: calls are made in the event dispatch thread.
+	 */
+	public interface Listener {
+		/**
+		 * Receive the object parsed from a selected file.
+		 * @param file the file.
+		 * @param dob the object, or null if the file could not be parsed.
+		 */
+		public void dicomObjectLoaded(File file, DicomObject dob);
+	}
+
+	LinkedList<Listener> listeners = new LinkedList<Listener>();
+	ExecutorService executor;
+	AtomicLong loadCount = new AtomicLong(0);
+	AtomicLong decodeCount = new AtomicLong(0);
+	Future<?> pendingLoad = null;
+	Future<?> pendingDecode = null;
+
+	/**
+	 * Get the singleton instance of the loader.
+	 */
+	public static synchronized DicomLoader getInstance() {
+		if (instance == null) {
+			instance = new DicomLoader();
+		}
+		return instance;
+	}
+
+	protected DicomLoader() {
+		executor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DicomLoader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Add a listener to receive the parsed objects.
+	 * @param listener the listener.
+	 */
+	public synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * The FileListener implementation; loads each file which is selected.
+	 * @param event the event containing the current file selection.
+	 */
+	public void fileEventOccurred(FileEvent event) {
+		if (event.isSELECT()) {
+			File file = event.getFile();
+			if ((file != null) && file.isFile()) load(file);
+		}
+	}
+
+	/**
+	 * Parse a file in the background and pass the object to the
+	 * listeners, unless another file is requested in the meantime.
+	 * @param file the file.
+	 */
+	public synchronized void load(final File file) {
+		final long id = loadCount.incrementAndGet();
+		if (pendingLoad != null) pendingLoad.cancel(false);
+		pendingLoad = executor.submit( new Runnable() {
+			public void run() {
+				if (id != loadCount.get()) return;
+				DicomObject dob = null;
+				try { dob = DicomObjectCache.getInstance().getDicomObject(file); }
+				catch (Exception ex) {
+					logger.warn("Unable to parse "+file+" as DicomObject.", ex);
+				}
+				deliver(id, file, dob);
+			}
+		});
+	}
+
+	private void deliver(final long id, final File file, final DicomObject dob) {
+		if (id != loadCount.get()) return;
+		SwingUtilities.invokeLater( new Runnable() {
+			public void run() {
+				if (id != loadCount.get()) return;
+				Listener[] list;
+				synchronized (DicomLoader.this) {
+					list = listeners.toArray(new Listener[listeners.size()]);
+				}
+				for (Listener listener : list) {
+					listener.dicomObjectLoaded(file, dob);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decode a frame into the FrameCache in the background and then run
+	 * a task in the event dispatch thread, unless another frame is
+	 * requested in the meantime. The task is run whether or not the
+	 * frame could be decoded.
+	 * @param dob the object.
+	 * @param frame the frame, starting from zero.
+	 * @param whenDone the task to run when the frame is ready.
+	 */
+	public synchronized void decode(final DicomObject dob, final int frame, final Runnable whenDone) {
+		final long id = decodeCount.incrementAndGet();
+		if (pendingDecode != null) pendingDecode.cancel(false);
+		pendingDecode = executor.submit( new Runnable() {
+			public void run() {
+				if (id != decodeCount.get()) return;
+				try { FrameCache.getInstance().getFrame(dob, frame); }
+				catch (Exception ex) {
+					logger.debug("Unable to decode frame "+frame+" of "+dob.getFile(), ex);
+				}
+				if (id != decodeCount.get()) return;
+				SwingUtilities.invokeLater( new Runnable() {
+					public void run() {
+						if (id == decodeCount.get()) whenDone.run();
+					}
+				});
+			}
+		});
+	}
+}
@@ -0,0 +1,183 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.DcmDecodeParam;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.util.StringUtil;
+
+/**
+ * A bounded cache of parsed DicomObjects, shared by the Viewer, the Editor,
+ * and the import, so a file which is selected and then imported is parsed
+ * only once. Entries are keyed by the path and the last-modified time of
+ * the file, so a file which changes is parsed again.
+ * <p>
+ * The parse of a DicomObject stops before the pixels, so an object is
+ * weighted by the encoded length of its dataset. A DicomObject keeps the
+ * last frame decoded from it, however, so when a frame is decoded (see
+ * FrameCache), the size of the frame is added to the weight of the entry.
+ * When the cache is full, the least recently used entries which hold a
+ * decoded frame are evicted before any which do not. The limits are taken
+ * from the dicomCacheSize property (the number of objects, default 20)
+ * and the dicomCacheMB property (default 64).
+ * <p>
+ * The cached objects are shared between threads, so they must not be modified.
+ */
+public class DicomObjectCache {
+
+	static final Logger logger = Logger.getLogger(DicomObjectCache.class);
+	static DicomObjectCache instance = null;
+
+	LinkedHashMap<String,Entry> map;
+	int maxSize;
+	long maxWeight;
+	long weight = 0;
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+
+	/**
+	 * Get the singleton instance of the cache.
+	 */
+	public static synchronized DicomObjectCache getInstance() {
+		if (instance == null) {
+			instance = new DicomObjectCache();
+		}
+		return instance;
+	}
+
+	protected DicomObjectCache() {
+		Configuration config = Configuration.getInstance();
+		maxSize = Math.max( StringUtil.getInt( config.get("dicomCacheSize"), 20 ), 1 );
+		long mb = Math.max( StringUtil.getInt( config.get("dicomCacheMB"), 64 ), 1 );
+		maxWeight = mb * 1024 * 1024;
+		map = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Get the parsed object for a file, from the cache if possible,
+	 * and keep it in the cache.
+	 * @param file the file.
+	 * @return the object.
+	 * @throws Exception if the file cannot be parsed as a DicomObject.
+	 */
+	public DicomObject getDicomObject(File file) throws Exception {
+		return getDicomObject(file, true);
+	}
+
+	/**
+	 * Get the parsed object for a file, from the cache if possible.
+	 * @param file the file.
+	 * @param keep true if an object which has to be parsed is to be kept
+	 * in the cache; false if it is not expected to be needed again, as
+	 * in an import, so it does not displace the objects being viewed.
+	 * @return the object.
+	 * @throws Exception if the file cannot be parsed as a DicomObject.
+	 */
+	public DicomObject getDicomObject(File file, boolean keep) throws Exception {
+		String key = getKey(file);
+		synchronized (this) {
+			Entry entry = map.get(key);
+			if (entry != null) {
+				hits++;
+				return entry.dob;
+			}
+			misses++;
+		}
+		//Parse outside the lock, so other threads are not held up.
+		DicomObject dob = new DicomObject(file);
+		if (keep) put(key, new Entry(dob, getHeaderWeight(dob)));
+		return dob;
+	}
+
+	/**
+	 * Record that a frame has been decoded from an object, and is
+	 * therefore held by it, and evict entries as necessary.
+	 * @param dob the object.
+	 * @param image the decoded frame.
+	 */
+	public synchronized void frameDecoded(DicomObject dob, BufferedImage image) {
+		Entry entry = map.get(getKey(dob.getFile()));
+		if ((entry == null) || (entry.dob != dob)) return;
+		long pixels = FrameCache.getWeight(image);
+		weight += pixels - entry.pixels;
+		entry.pixels = pixels;
+		evict(null);
+	}
+
+	/**
+	 * Remove all the entries from the cache. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	public synchronized String toString() {
+		return "size="+map.size()+"; weight="+weight
+				+"; hits="+hits+"; misses="+misses+"; evictions="+evictions;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		Entry old = map.put(key, entry);
+		if (old != null) weight -= old.getWeight();
+		weight += entry.getWeight();
+		evict(key);
+	}
+
+	//Evict entries until the cache is within its limits, taking the least
+	//recently used entries which hold a decoded frame first, and then the
+	//least recently used of the rest. The entry with the given key, which
+	//has just been added, is not evicted.
+	private void evict(String keep) {
+		while (((weight > maxWeight) || (map.size() > maxSize)) && evict(keep, true)) ;
+		while (((weight > maxWeight) || (map.size() > maxSize)) && evict(keep, false)) ;
+	}
+
+	private boolean evict(String keep, boolean pixelsOnly) {
+		Iterator<Map.Entry<String,Entry>> it = map.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String,Entry> eldest = it.next();
+			Entry entry = eldest.getValue();
+			if (eldest.getKey().equals(keep) || (pixelsOnly && (entry.pixels == 0))) continue;
+			weight -= entry.getWeight();
+			it.remove();
+			evictions++;
+			return true;
+		}
+		return false;
+	}
+
+	//The key identifies the file and its version.
+	private static String getKey(File file) {
+		return file.getAbsolutePath() + "|" + file.lastModified();
+	}
+
+	//Get the encoded length of the dataset, which does not include the pixels.
+	private static long getHeaderWeight(DicomObject dob) {
+		try { return Math.max(dob.getDataset().calcLength(DcmDecodeParam.EVR_LE), 1); }
+		catch (Exception ex) { return dob.getFile().length(); }
+	}
+
+	static class Entry {
+		DicomObject dob;
+		long header;
+		long pixels = 0;
+		public Entry(DicomObject dob, long header) {
+			this.dob = dob;
+			this.header = header;
+		}
+		public long getWeight() {
+			return header + pixels;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * A scanner which lists the files in a directory tree on a pool of
+ * threads and places them in a bounded queue for a consumer.
+ * <p>
+ * Each directory is listed by a separate task, so the subdirectories of
+ * a directory are listed concurrently. On a network filesystem, where
+ * each listing costs a round trip, this keeps several requests in flight
+ * at once. When the queue is full, the scanning threads wait for the
+ * consumer, so the memory used does not depend on the size of the tree.
+ * The queue of directories waiting to be listed is bounded too; when it
+ * is full, a thread which finds a subdirectory lists it itself, so a wide
+ * tree is walked depth-first rather than queued a level at a time.
+ */
+public class DirectoryScanner {
+
+	static final Logger logger = Logger.getLogger(DirectoryScanner.class);
+
+	//The marker placed in the queue when the scan is complete.
+	static final File end = new File("");
+
+	FileFilter filter;
+	boolean subdirectories;
+	ImportEngine.Listener listener;
+	BlockingQueue<File> queue;
+	ThreadPoolExecutor executor;
+	AtomicInteger pending = new AtomicInteger(0);
+	boolean done = false;
+
+	/**
+	 * Class constructor.
+	 * @param threads the number of directories to list concurrently.
+	 * @param capacity the maximum number of files waiting in the queue.
+	 * @param filter the filter for selecting files and directories, or null to select all.
+	 * @param subdirectories true if subdirectories are to be scanned.
+	 * @param listener the object to receive an error result for each directory
+	 * which cannot be listed.
+	 */
+	public DirectoryScanner(int threads, int capacity, FileFilter filter,
+							boolean subdirectories, ImportEngine.Listener listener) {
+		this.filter = filter;
+		this.subdirectories = subdirectories;
+		this.listener = listener;
+		this.queue = new ArrayBlockingQueue<File>(Math.max(capacity, 1));
+		threads = Math.max(threads, 1);
+		this.executor = new ThreadPoolExecutor(
+							threads, threads, 0L, TimeUnit.MILLISECONDS,
+							new ArrayBlockingQueue<Runnable>(4 * threads),
+							new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Start the scan. If the root is a file, it is the only file returned.
+	 * @param root the file or directory to scan.
+	 */
+	public void start(File root) {
+		if (root.isFile()) {
+			queue.offer(root);
+			queue.offer(end);
+			executor.shutdown();
+		}
+		else scan(root);
+	}
+
+	/**
+	 * Get the next file, waiting if none is available yet.
+	 * @return the next file, or null if the scan is complete.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public File take() throws InterruptedException {
+		if (done) return null;
+		File file = queue.take();
+		if (file == end) {
+			done = true;
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * Abandon the scan, stopping the scanning threads.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+		queue.clear();
+		done = true;
+	}
+
+	//Queue a task to list a directory, or list it on this
+	//thread if the queue is full. The executor is shut down
+	//only when the scan is stopped or complete, so there is
+	//nothing more to list.
+	private void scan(final File dir) {
+		if (executor.isShutdown()) return;
+		pending.incrementAndGet();
+		executor.execute( new Runnable() {
+			public void run() {
+				try { list(dir); }
+				finally { finished(); }
+			}
+		});
+	}
+
+	//List a directory, queueing its files and scanning its subdirectories.
+	private void list(File dir) {
+		DirectoryStream<Path> stream = null;
+		try {
+			stream = Files.newDirectoryStream(dir.toPath());
+			for (Path path : stream) {
+				File file = path.toFile();
+				if ((filter != null) && !filter.accept(file)) continue;
+				if (file.isDirectory()) {
+					if (subdirectories) scan(file);
+				}
+				else queue.put(file);
+			}
+		}
+		catch (InterruptedException stopped) {
+			//Keep the interrupt, so a listing which called this one inline stops too.
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception ex) {
+			listener.fileProcessed(
+				ImportResult.ERROR(dir, dir+" appears to be a corrupt directory"));
+		}
+		finally {
+			try { if (stream != null) stream.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	//Mark the end of a listing, ending the scan if it was the last.
+	private void finished() {
+		if (pending.decrementAndGet() == 0) {
+			executor.shutdown();
+			try { queue.put(end); }
+			catch (InterruptedException stopped) { }
+		}
+	}
+}
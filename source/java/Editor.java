@@ -17,8 +17,6 @@ import javax.swing.event.*;
 import org.apache.log4j.*;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ui.ApplicationProperties;
-import org.rsna.ui.FileEvent;
-import org.rsna.ui.FileListener;
 import org.rsna.ui.PropertyEvent;
 import org.rsna.ui.PropertyListener;
 import org.rsna.util.FileUtil;
@@ -26,7 +24,7 @@ import org.rsna.util.FileUtil;
 /**
  * A JPanel that provides a DICOM editor.
  */
-public class Editor extends JPanel implements FileListener {
+public class Editor extends JPanel implements DicomLoader.Listener {
 
 	static final Logger logger = Logger.getLogger(Editor.class);
 
@@ -45,29 +43,18 @@ public class Editor extends JPanel implements FileListener {
     }
 
 	/**
-	 * The FileListener implementation; tracks the current
-	 * selection from any file selectors with which the object is
-	 * registered. Note: this class does not register itself with
-	 * a file selector; it is up to the parent class to do it.
-	 * Note: events received are in the event dispatch thread because
-	 * they come from a DirectoryPane and it sends its events that way.
-	 * @param event the event containing the current file selection.
+	 * The DicomLoader.Listener implementation; displays the elements of
+	 * the object parsed from the current selection. The file is parsed
+	 * on the loader's thread, and this method is called in the event
+	 * dispatch thread.
+	 * @param file the selected file.
+	 * @param dob the object parsed from the file, or null if the file
+	 * could not be parsed.
 	 */
-	public void fileEventOccurred(FileEvent event) {
-		if (event.isSELECT()) {
-			try {
-				File file = event.getFile();
-				if (file.isFile()) {
-					dicomObject = new DicomObject(file);
-					textPanel.displayElements(dicomObject);
-				}
-			}
-			catch (Exception unable) {
-				logger.warn("Unable to parse "+event.getFile()+" as DicomObject.",unable);
-				dicomObject = null;
-				textPanel.clear();
-			}
-		}
+	public void dicomObjectLoaded(File file, DicomObject dob) {
+		dicomObject = dob;
+		if (dob != null) textPanel.displayElements(dob);
+		else textPanel.clear();
 	}
 
 	class TextPanel extends JPanel {
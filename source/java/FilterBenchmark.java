@@ -0,0 +1,119 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.*;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.util.FileUtil;
+import org.rsna.util.StringUtil;
+
+/**
+ * A command-line program to measure the cost of evaluating a filter script,
+ * comparing the interpreted evaluation of DicomObject.matches with the
+ * compiled evaluation of FilterScript, and checking that they agree.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp Deidentifier.jar org.jp.deidentifier.FilterBenchmark scriptfile path [iterations]
+ * </pre>
+ * The path may be a DICOM file or a directory of DICOM files. Each file is
+ * parsed once; the script is then evaluated against every file the specified
+ * number of times (default 1000) by each method, and the average cost of an
+ * evaluation is reported, with the number of matches counted by each method,
+ * which must be the number of matching files times the number of iterations.
+ */
+public class FilterBenchmark {
+
+	public static void main(String args[]) {
+		Logger.getRootLogger().addAppender(
+				new ConsoleAppender(
+					new PatternLayout("%d{HH:mm:ss} %-5p [%c{1}] %m%n"),
+					ConsoleAppender.SYSTEM_ERR));
+		Logger.getRootLogger().setLevel(Level.WARN);
+		if (args.length < 2) {
+			System.err.println("Usage: FilterBenchmark scriptfile path [iterations]");
+			System.exit(2);
+		}
+		String script = FileUtil.getText(new File(args[0])).trim();
+		int iterations = (args.length > 2) ? Math.max(StringUtil.getInt(args[2], 1000), 1) : 1000;
+		LinkedList<DicomObject> dobs = new LinkedList<DicomObject>();
+		load(new File(args[1]), dobs);
+		if (dobs.isEmpty()) {
+			System.err.println("No DICOM files found in "+args[1]);
+			System.exit(2);
+		}
+
+		long t0 = System.nanoTime();
+		FilterScript filter = new FilterScript(script);
+		long compileTime = System.nanoTime() - t0;
+		if (filter.getError() != null) System.out.println("Compilation error: "+filter.getError());
+
+		//Check that the methods agree, and warm up both.
+		int matches = 0;
+		int disagreements = 0;
+		for (DicomObject dob : dobs) {
+			boolean m = filter.matches(dob);
+			if (m) matches++;
+			if (m != dob.matches(script)) {
+				disagreements++;
+				System.out.println("Disagreement: "+dob.getFile());
+			}
+		}
+
+		Run interpreted = time(dobs, script, null, iterations);
+		Run compiled = time(dobs, script, filter, iterations);
+		long n = (long)iterations * dobs.size();
+		long expected = (long)iterations * matches;
+		boolean ok = (disagreements == 0)
+						&& (interpreted.matches == expected)
+						&& (compiled.matches == expected);
+		System.out.println("files="+dobs.size());
+		System.out.println("matches="+matches);
+		System.out.println("disagreements="+disagreements);
+		System.out.println("interpretedMatches="+interpreted.matches);
+		System.out.println("compiledMatches="+compiled.matches);
+		System.out.println("compileNanos="+compileTime);
+		System.out.println("interpretedNanosPerFile="+(interpreted.nanos / n));
+		System.out.println("compiledNanosPerFile="+(compiled.nanos / n));
+		System.exit(ok ? 0 : 1);
+	}
+
+	//The total time and the number of matches of a timed run.
+	static class Run {
+		long nanos;
+		long matches;
+	}
+
+	//Evaluate the script against all the objects repeatedly,
+	//counting the matches, which are reported.
+	private static Run time(List<DicomObject> dobs, String script, FilterScript filter, int iterations) {
+		Run run = new Run();
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; i++) {
+			for (DicomObject dob : dobs) {
+				boolean m = (filter != null) ? filter.matches(dob) : dob.matches(script);
+				if (m) run.matches++;
+			}
+		}
+		run.nanos = System.nanoTime() - start;
+		return run;
+	}
+
+	private static void load(File file, List<DicomObject> dobs) {
+		if (file.isFile()) {
+			try { dobs.add(new DicomObject(file)); }
+			catch (Exception notDicom) { }
+		}
+		else {
+			File[] files = file.listFiles();
+			if (files != null) {
+				for (File f : files) load(f, dobs);
+			}
+		}
+	}
+}
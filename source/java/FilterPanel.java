@@ -19,10 +19,11 @@ public class FilterPanel extends BasePanel implements ActionListener {
 	JScrollPane jsp;
 	JButton reset;
 	JButton save;
-	File file = new File("filter.script");
+	File file = new File(Configuration.filterScriptFile);
 	JCheckBox filterSRs; //structured reports
 	JCheckBox filterSCs; //secondary capture
 	JCheckBox acceptRFs; //reformatted images
+	JComboBox<String> dedup; //recognition of instances already imported
 	Configuration config;
 
 	static FilterPanel filterPanel = null;
@@ -64,6 +65,13 @@ public class FilterPanel extends BasePanel implements ActionListener {
 		acceptRFs.setSelected(!sel.equals("no"));
 		acceptRFs.setBackground(config.background);
 		acceptRFs.addActionListener(this);
+		dedup = new JComboBox<String>(new String[] { "none", "uid", "hash" });
+		sel = config.getProps().getProperty("dedup", "none");
+		dedup.setSelectedItem(sel.equals("uid") || sel.equals("hash") ? sel : "none");
+		dedup.setToolTipText("Skip instances already imported: none, by SOPInstanceUID, or by SOPInstanceUID and file hash");
+		dedup.setMaximumSize(dedup.getPreferredSize());
+		dedup.addActionListener(this);
+		JLabel dedupLabel = new JLabel("Skip Duplicates: ");
 		
 		reset = new JButton("Reset");
 		reset.addActionListener(this);
@@ -76,6 +84,9 @@ public class FilterPanel extends BasePanel implements ActionListener {
 		footer.add(filterSCs);
 		footer.add(Box.createHorizontalStrut(20));
 		footer.add(acceptRFs);
+		footer.add(Box.createHorizontalStrut(20));
+		footer.add(dedupLabel);
+		footer.add(dedup);
 		footer.add(Box.createHorizontalGlue());
 		footer.add(reset);
 		footer.add(Box.createHorizontalStrut(3));
@@ -113,6 +124,10 @@ public class FilterPanel extends BasePanel implements ActionListener {
 		return acceptRFs.isSelected();
 	}
 
+	public String getDedup() {
+		return (String)dedup.getSelectedItem();
+	}
+
 	public void actionPerformed(ActionEvent event) {
 		Object source = event.getSource();
 		if (source.equals(reset)) reload();
@@ -128,6 +143,9 @@ public class FilterPanel extends BasePanel implements ActionListener {
 		else if (source.equals(acceptRFs)) {
 			config.getProps().setProperty("acceptRFs", (acceptRFs.isSelected() ? "yes" : "no"));
 		}
+		else if (source.equals(dedup)) {
+			config.getProps().setProperty("dedup", getDedup());
+		}
 	}
 
 }
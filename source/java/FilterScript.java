@@ -0,0 +1,327 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A filter script compiled into a tree of nodes, which can be evaluated
+ * against any number of DicomObjects without parsing the script again.
+ * <p>
+ * The language is the one accepted by DicomObject.matches: conditions of
+ * the form <code>Element.function("value")</code>, the constants
+ * <code>true.</code> and <code>false.</code>, the operators
+ * <code>!</code> (not), <code>*</code> (and), and <code>+</code> (or),
+ * parentheses, and <code>//</code> comments. The results are the same as
+ * those of DicomObject.matches, but operands are evaluated only when they
+ * can affect the result, so only the elements which are needed are read,
+ * and regular expressions and numeric values are converted only once.
+ */
+public class FilterScript {
+
+	static final Logger logger = Logger.getLogger(FilterScript.class);
+
+	String script;
+	Node root = null;
+	String error = null;
+
+	/**
+	 * Compile a filter script.
+	 * @param script the text of the script. An empty or null script
+	 * matches every object.
+	 */
+	public FilterScript(String script) {
+		this.script = (script != null) ? script.trim() : "";
+		if (this.script.length() == 0) {
+			root = new Constant(true);
+			return;
+		}
+		try {
+			root = new Parser(this.script).parse();
+		}
+		catch (Exception ex) {
+			error = ex.getMessage();
+			root = new Constant(false);
+			logger.warn("Error in filter script; no objects will match:\n"+ex.getMessage()+"\n"+this.script);
+		}
+	}
+
+	/**
+	 * Determine whether the script is empty, so it matches every object.
+	 * @return true if the script is empty.
+	 */
+	public boolean isEmpty() {
+		return script.length() == 0;
+	}
+
+	/**
+	 * Get the error from the compilation of the script.
+	 * @return the error message, or null if the script compiled.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Evaluate the script against an object.
+	 * @param dob the object.
+	 * @return true if the object matches the script; false otherwise,
+	 * or if the script could not be compiled.
+	 */
+	public boolean matches(DicomObject dob) {
+		try { return root.evaluate(dob); }
+		catch (Exception ex) { return false; }
+	}
+
+	public String toString() {
+		return root.toString();
+	}
+
+	//The nodes of the tree
+	interface Node {
+		public boolean evaluate(DicomObject dob);
+	}
+
+	static class Constant implements Node {
+		boolean value;
+		public Constant(boolean value) {
+			this.value = value;
+		}
+		public boolean evaluate(DicomObject dob) {
+			return value;
+		}
+		public String toString() {
+			return value + ".";
+		}
+	}
+
+	static class Not implements Node {
+		Node node;
+		public Not(Node node) {
+			this.node = node;
+		}
+		public boolean evaluate(DicomObject dob) {
+			return !node.evaluate(dob);
+		}
+		public String toString() {
+			return "!" + node;
+		}
+	}
+
+	static class And implements Node {
+		Node left, right;
+		public And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+		public boolean evaluate(DicomObject dob) {
+			return left.evaluate(dob) && right.evaluate(dob);
+		}
+		public String toString() {
+			return "(" + left + " * " + right + ")";
+		}
+	}
+
+	static class Or implements Node {
+		Node left, right;
+		public Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+		public boolean evaluate(DicomObject dob) {
+			return left.evaluate(dob) || right.evaluate(dob);
+		}
+		public String toString() {
+			return "(" + left + " + " + right + ")";
+		}
+	}
+
+	//A condition on the value of an element. The functions and their
+	//treatment of case are those of DicomObject.matches.
+	static class Condition implements Node {
+		static final String nonNumeric = "[^0-9\\.]";
+		static final String[] functions = {
+			"equals", "equalsIgnoreCase", "matches",
+			"contains", "containsIgnoreCase",
+			"startsWith", "startsWithIgnoreCase",
+			"endsWith", "endsWithIgnoreCase",
+			"isLessThan", "isGreaterThan"
+		};
+		String element;
+		String function;
+		int fn;
+		String arg;
+		String lcArg;
+		Pattern pattern = null;
+		double number = 0;
+		boolean isNumber = false;
+
+		public Condition(String element, String function, String arg) throws Exception {
+			this.element = element;
+			this.function = function;
+			this.arg = arg;
+			this.lcArg = arg.toLowerCase();
+			fn = Arrays.asList(functions).indexOf(function);
+			if (fn == 2) pattern = Pattern.compile(arg);
+			else if (fn >= 9) {
+				try {
+					number = Double.parseDouble(lcArg.replaceAll(nonNumeric, ""));
+					isNumber = true;
+				}
+				catch (Exception ex) { isNumber = false; }
+			}
+		}
+
+		public boolean evaluate(DicomObject dob) {
+			String value = dob.getElementValue(element);
+			switch (fn) {
+				case 0: return value.equals(arg);
+				case 1: return value.equalsIgnoreCase(arg);
+				case 2: return pattern.matcher(value).matches();
+				case 3: return value.contains(arg);
+				case 4: return value.toLowerCase().contains(lcArg);
+				case 5: return value.startsWith(arg);
+				case 6: return value.toLowerCase().startsWith(lcArg);
+				case 7: return value.endsWith(arg);
+				case 8: return value.toLowerCase().endsWith(lcArg);
+				case 9:
+				case 10:
+					if (!isNumber) return false;
+					double d;
+					try { d = Double.parseDouble(value.toLowerCase().replaceAll(nonNumeric, "")); }
+					catch (Exception ex) { return false; }
+					return (fn == 9) ? (d < number) : (d > number);
+			}
+			return false;
+		}
+
+		public String toString() {
+			return element + "." + function + "(\"" + arg + "\")";
+		}
+	}
+
+	//A parser for the script. The script is converted to postfix form with
+	//the same operator-precedence algorithm as DicomObject.matches, and the
+	//tree is built from the postfix form in the same way that DicomObject
+	//evaluates it, so the results agree even for unusual scripts such as
+	//those with consecutive ! operators. Operators bind in the order !, *, +.
+	static class Parser {
+		static final String operators = "?+*!"; //'?' is the sentinel
+		String script;
+		int index = 0;
+		LinkedList<Object> postfix = new LinkedList<Object>();
+		Stack<Character> stack = new Stack<Character>();
+
+		public Parser(String script) {
+			this.script = script;
+		}
+
+		//Parse the whole script and build the tree.
+		public Node parse() throws Exception {
+			stack.push('?');
+			expression();
+			if (peek() != 0) throw new Exception("Unexpected text at offset "+index);
+			return build();
+		}
+
+		void expression() throws Exception {
+			term();
+			char c;
+			while (((c = peek()) == '+') || (c == '*')) {
+				pushOperator(c);
+				index++;
+				term();
+			}
+			while (stack.peek() != '?') postfix.add(stack.pop());
+		}
+
+		void term() throws Exception {
+			char c = peek();
+			if ((c == '[') || Character.isLetter(c)) postfix.add(operand());
+			else if (c == '(') {
+				index++;
+				stack.push('?');
+				expression();
+				if (peek() != ')') throw new Exception(") expected at offset "+index);
+				index++;
+				stack.pop();
+			}
+			else if (c == '!') {
+				pushOperator(c);
+				index++;
+				term();
+			}
+			else throw new Exception("Operand expected at offset "+index);
+		}
+
+		void pushOperator(char c) {
+			int p = operators.indexOf(c);
+			while (operators.indexOf(stack.peek()) >= p) postfix.add(stack.pop());
+			stack.push(c);
+		}
+
+		//Build the tree from the end of the postfix list. Anything left
+		//over is ignored; a missing operand is false.
+		Node build() {
+			if (postfix.isEmpty()) return new Constant(false);
+			Object token = postfix.removeLast();
+			if (token instanceof Node) return (Node)token;
+			char c = ((Character)token).charValue();
+			if (c == '!') return new Not(build());
+			Node right = build();
+			Node left = build();
+			return (c == '+') ? new Or(left, right) : new And(left, right);
+		}
+
+		//Parse a condition or a constant.
+		Node operand() throws Exception {
+			String element = getField('.').trim();
+			if (element.equals("true")) return new Constant(true);
+			if (element.equals("false")) return new Constant(false);
+			String function = getField('(').trim();
+			String arg = getField(')').trim();
+			if ((arg.length() > 1) && (arg.charAt(0) == '\"') && (arg.charAt(arg.length()-1) == '\"')) {
+				arg = arg.substring(1, arg.length()-1);
+				Condition condition = new Condition(element, function, arg);
+				if (condition.fn >= 0) return condition;
+				logger.warn("Unknown function in filter script: "+condition);
+			}
+			//Malformed conditions and unknown functions are false.
+			return new Constant(false);
+		}
+
+		//Get the text up to a delimiter, ignoring delimiters in quotes.
+		//The delimiter is consumed but not returned.
+		String getField(char delimiter) {
+			StringBuffer sb = new StringBuffer();
+			boolean inQuote = false;
+			while (index < script.length()) {
+				char c = script.charAt(index++);
+				if (c == '\"') inQuote = !inQuote;
+				if (!inQuote && (c == delimiter)) break;
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+
+		//Skip whitespace and comments, and return the next character,
+		//or zero at the end of the script.
+		char peek() {
+			while (index < script.length()) {
+				char c = script.charAt(index);
+				if (Character.isWhitespace(c)) index++;
+				else if ((c == '/') && (index+1 < script.length()) && (script.charAt(index+1) == '/')) {
+					while ((index < script.length()) && (script.charAt(index) != '\n')) index++;
+				}
+				else return c;
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.awt.image.*;
+import java.io.File;
+import java.util.HashSet;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.util.StringUtil;
+
+/**
+ * A memory-bounded cache of decoded frames, with prefetching of the
+ * frames around the one being displayed.
+ * <p>
+ * The cached images are the frames as decoded by DicomObject.getBufferedImage,
+ * before window-leveling and scaling, so one entry serves any window and any
+ * zoom. Entries are weighted by the size of their pixel data, and the limit
+ * is taken from the frameCacheMB property (default 256). Frames are prefetched
+ * on a single background thread; the number of frames ahead of the current
+ * one is taken from the prefetchFrames property (default 4), and half as many
+ * are prefetched behind it.
+ */
+public class FrameCache {
+
+	static final Logger logger = Logger.getLogger(FrameCache.class);
+	static FrameCache instance = null;
+
+	LRUCache<String,BufferedImage> cache;
+	ExecutorService prefetcher;
+	HashSet<String> queued = new HashSet<String>();
+	int prefetchFrames = 4;
+	volatile DicomObject currentObject = null;
+	volatile int currentFrame = 0;
+
+	/**
+	 * Get the singleton instance of the cache.
+	 */
+	public static synchronized FrameCache getInstance() {
+		if (instance == null) {
+			instance = new FrameCache();
+		}
+		return instance;
+	}
+
+	protected FrameCache() {
+		Configuration config = Configuration.getInstance();
+		long mb = Math.max( StringUtil.getInt( config.get("frameCacheMB"), 256 ), 1 );
+		cache = new LRUCache<String,BufferedImage>(mb * 1024 * 1024);
+		prefetchFrames = Math.max( StringUtil.getInt( config.get("prefetchFrames"), 4 ), 0 );
+		prefetcher = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FramePrefetcher");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Get a decoded frame, from the cache if possible.
+	 * @param dob the object.
+	 * @param frame the frame number, starting from zero.
+	 * @return the decoded frame. The image is shared, so it must not be modified.
+	 * @throws Exception if the frame cannot be decoded.
+	 */
+	public BufferedImage getFrame(DicomObject dob, int frame) throws Exception {
+		String key = getKey(dob, frame);
+		BufferedImage image = cache.get(key);
+		if (image == null) {
+			image = dob.getBufferedImage(frame, false);
+			cache.put(key, image, getWeight(image));
+			DicomObjectCache.getInstance().frameDecoded(dob, image);
+		}
+		return image;
+	}
+
+	/**
+	 * Get a decoded frame if it is in the cache, without decoding it.
+	 * @param dob the object.
+	 * @param frame the frame number, starting from zero.
+	 * @return the decoded frame, or null if it is not in the cache.
+	 * The image is shared, so it must not be modified.
+	 */
+	public BufferedImage getCachedFrame(DicomObject dob, int frame) {
+		return cache.get(getKey(dob, frame));
+	}
+
+	/**
+	 * Determine whether a frame is in the cache.
+	 * @param dob the object.
+	 * @param frame the frame number, starting from zero.
+	 * @return true if the frame is in the cache.
+	 */
+	public boolean isCached(DicomObject dob, int frame) {
+		return cache.containsKey(getKey(dob, frame));
+	}
+
+	/**
+	 * Queue the frames around the current frame for decoding in the
+	 * background. Frames already queued for another object, or for frames
+	 * no longer near the current one, are abandoned when their turn comes.
+	 * @param dob the object.
+	 * @param frame the current frame, starting from zero.
+	 * @param nFrames the number of frames in the object.
+	 * @param direction +1 if the frames are being viewed in increasing
+	 * order, -1 if in decreasing order.
+	 */
+	public void prefetch(DicomObject dob, int frame, int nFrames, int direction) {
+		currentObject = dob;
+		currentFrame = frame;
+		direction = (direction < 0) ? -1 : 1;
+		for (int i=1; i<=prefetchFrames; i++) {
+			queue(dob, frame + direction * i, nFrames);
+			if (2*i <= prefetchFrames) queue(dob, frame - direction * i, nFrames);
+		}
+	}
+
+	private void queue(final DicomObject dob, final int frame, int nFrames) {
+		if ((frame < 0) || (frame >= nFrames)) return;
+		final String key = getKey(dob, frame);
+		synchronized (queued) {
+			if (cache.containsKey(key) || !queued.add(key)) return;
+		}
+		prefetcher.execute( new Runnable() {
+			public void run() {
+				try {
+					if ((dob == currentObject)
+							&& (Math.abs(frame - currentFrame) <= prefetchFrames)
+								&& !cache.containsKey(key)) {
+						BufferedImage image = dob.getBufferedImage(frame, false);
+						cache.put(key, image, getWeight(image));
+						DicomObjectCache.getInstance().frameDecoded(dob, image);
+					}
+				}
+				catch (Exception ex) {
+					logger.debug("Unable to prefetch frame "+frame+" of "+dob.getFile(), ex);
+				}
+				finally {
+					synchronized (queued) { queued.remove(key); }
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop prefetching frames for the current object.
+	 */
+	public void cancelPrefetch() {
+		currentObject = null;
+	}
+
+	public String toString() {
+		return cache.toString();
+	}
+
+	//The key identifies the file, its version, and the frame.
+	private static String getKey(DicomObject dob, int frame) {
+		File file = dob.getFile();
+		return file.getAbsolutePath() + "|" + file.lastModified() + "|" + frame;
+	}
+
+	//Get the number of bytes of pixel data in an image.
+	static long getWeight(BufferedImage image) {
+		DataBuffer db = image.getRaster().getDataBuffer();
+		long bits = (long)db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType());
+		return Math.max(bits / 8, 1);
+	}
+}
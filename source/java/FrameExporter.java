@@ -0,0 +1,194 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * An exporter which saves frames of a DICOM image as window-leveled JPEGs
+ * on a pool of background threads.
+ * <p>
+ * DicomObject.getBufferedImage is synchronized, so frames can only be
+ * decoded in parallel from separate objects. Each thread therefore parses
+ * its own DicomObject from the file, and has its own FrameRenderer and its
+ * own JPEG writer. Frames which are already in the FrameCache are not
+ * decoded again, but the frames decoded for the export are not added to
+ * it, so an export does not displace the frames being viewed.
+ * <p>
+ * The progress of an export can be read at any time from any thread.
+ */
+public class FrameExporter {
+
+	static final Logger logger = Logger.getLogger(FrameExporter.class);
+
+	File file;
+	int[] frames;
+	File dir;
+	String name;
+	double scale;
+	int wl;
+	int ww;
+	int quality;
+	ExecutorService executor = null;
+	AtomicInteger next = new AtomicInteger(0);
+	AtomicInteger saved = new AtomicInteger(0);
+	AtomicInteger failed = new AtomicInteger(0);
+	volatile boolean cancelled = false;
+	volatile String error = null;
+
+	/**
+	 * Class constructor.
+	 * @param file the DICOM image.
+	 * @param frames the frames to save, starting from zero.
+	 * @param dir the directory in which to save the JPEGs.
+	 * @param name the base name of the JPEGs. Each is named
+	 * name[n].jpeg, where n is the frame number, starting from one.
+	 * @param scale the scale factor.
+	 * @param wl the window level, in rescaled units.
+	 * @param ww the window width, in rescaled units.
+	 * @param quality the JPEG quality (0-100), or -1 for the default.
+	 */
+	public FrameExporter(File file, int[] frames, File dir, String name,
+						 double scale, int wl, int ww, int quality) {
+		this.file = file;
+		this.frames = frames;
+		this.dir = dir;
+		this.name = name;
+		this.scale = scale;
+		this.wl = wl;
+		this.ww = ww;
+		this.quality = quality;
+	}
+
+	/**
+	 * Start the export.
+	 * @param threads the number of frames to export concurrently.
+	 */
+	public synchronized void start(int threads) {
+		threads = Math.max( Math.min(threads, frames.length), 1 );
+		executor = Executors.newFixedThreadPool(threads);
+		for (int i=0; i<threads; i++) {
+			executor.execute( new Runnable() {
+				public void run() { export(); }
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Stop the export. Frames being saved are finished; no others are started.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Determine whether the export has finished, whether or not
+	 * all the frames were saved.
+	 * @return true if no more frames will be saved.
+	 */
+	public synchronized boolean isDone() {
+		return (executor != null) && executor.isTerminated();
+	}
+
+	public int getFrameCount() {
+		return frames.length;
+	}
+
+	public int getSavedCount() {
+		return saved.get();
+	}
+
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Get the number of frames which have been saved or have failed.
+	 * @return the number of frames processed.
+	 */
+	public int getProcessedCount() {
+		return saved.get() + failed.get();
+	}
+
+	/**
+	 * Get the message of the first error, if any frame failed.
+	 * @return the message, or null if no frame has failed.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	//Export frames on one thread until there are no more.
+	private void export() {
+		ImageWriter writer = null;
+		try {
+			DicomObject dob = new DicomObject(file);
+			FrameRenderer renderer = new FrameRenderer(dob);
+			FrameCache frameCache = FrameCache.getInstance();
+			writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (quality >= 0) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(Math.min(quality, 100) / 100.0f);
+			}
+			int i;
+			while (!cancelled && ((i = next.getAndIncrement()) < frames.length)) {
+				int frame = frames[i];
+				try {
+					BufferedImage image = frameCache.getCachedFrame(dob, frame);
+					if (image == null) image = dob.getBufferedImage(frame, false);
+					BufferedImage jpeg = renderer.render(image, scale, wl, ww);
+					write(writer, param, jpeg, new File(dir, name + "["+(frame+1)+"].jpeg"));
+					saved.incrementAndGet();
+				}
+				catch (Exception ex) {
+					fail("Frame "+(frame+1)+": "+ex.getMessage(), ex);
+				}
+			}
+		}
+		catch (Exception ex) {
+			//The file could not be parsed; fail the frames this thread would have saved.
+			while (next.getAndIncrement() < frames.length) fail("Unable to parse "+file, ex);
+		}
+		finally {
+			if (writer != null) writer.dispose();
+		}
+	}
+
+	private void write(ImageWriter writer, ImageWriteParam param, BufferedImage image, File jpegFile) throws Exception {
+		FileImageOutputStream out = new FileImageOutputStream(jpegFile);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally {
+			writer.setOutput(null);
+			out.close();
+		}
+	}
+
+	private void fail(String message, Exception ex) {
+		if (failed.getAndIncrement() == 0) {
+			error = message;
+			logger.warn(message, ex);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.*;
+import java.util.Arrays;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A class to window-level and scale decoded frames of a DicomObject for
+ * display. The parameters which depend only on the object (the rescale
+ * slope and intercept, the presentation LUT shape, the pixel representation,
+ * and the bits stored) are read once, when the renderer is created, so a
+ * frame can be rendered from a cached decoded image without referring to
+ * the dataset again. The window is computed in the same way as in
+ * DicomObject.getScaledAndWindowLeveledBufferedImage.
+ * <p>
+ * The window is applied through a lookup table from stored pixel values
+ * to RGB values, which is made only when the window changes. Frames are
+ * scaled before the window is applied, and the scaled stored values are
+ * kept, so a change of window costs only one pass through the table over
+ * the pixels being displayed. Unscaled images, and images scaled with
+ * nearest-neighbor interpolation, are identical to those of DicomObject.
+ * Images scaled with bicubic interpolation differ, since the stored values
+ * are interpolated rather than the displayed values: by a few gray levels
+ * in smooth regions, but by up to the full range at sharp edges, where the
+ * interpolation overshoots.
+ * <p>
+ * Signed stored values are decoded without their sign bits extended, so
+ * they cannot be interpolated directly; a negative value would be taken
+ * as a large positive one. AffineTransformOp interpolates the samples of a
+ * 16-bit raster as signed values, so before a signed frame is scaled with
+ * bicubic interpolation, its values are sign-extended to 16 bits, and the
+ * lookup table is indexed by the signed values, clamped to the range of
+ * the stored values.
+ * <p>
+ * The rasters and the output image are reused while their sizes are
+ * unchanged, so changing the window allocates nothing. Because of this,
+ * the image returned by a call is only valid until the next call, and a
+ * renderer must only be used by one thread at a time.
+ */
+public class FrameRenderer {
+
+	//Images wider or taller than this are scaled with nearest-neighbor
+	//interpolation rather than bicubic, as in DicomObject.
+	static final int maxBicubicSize = 1100;
+
+	static final int black = 0xff000000;
+
+	boolean inverse;
+	boolean signed;
+	float slope;
+	float intercept;
+	int bitsStored;
+
+	//The lookup tables and the window they were made for.
+	byte[] gray = null;
+	int[] lut = null;
+	int[] signedLUT = null;
+	int lutWL = 0;
+	int lutWW = 0;
+
+	//The reusable images and the state they were made for.
+	BufferedImage output = null;
+	int[] outputPixels = null;
+	WritableRaster scaledRaster = null;
+	WritableRaster signedRaster = null;
+	BufferedImage scaledImage = null;
+	double scaledScale = 0.0;
+	AffineTransformOp op = null;
+	double opScale = 0.0;
+	int opInterpolation = -1;
+	int[] row = null;
+
+	/**
+	 * Class constructor.
+	 * @param dob the object whose frames are to be rendered.
+	 */
+	public FrameRenderer(DicomObject dob) {
+		inverse = dob.getElementValue("PresentationLUTShape").toLowerCase().trim().equals("inverse");
+		signed = dob.getElementValue("PixelRepresentation").trim().equals("1");
+		slope = dob.getFloat("RescaleSlope", 1.0f);
+		intercept = dob.getFloat("RescaleIntercept", 0.0f);
+		bitsStored = dob.getBitsStored();
+	}
+
+	/**
+	 * Window-level and scale a decoded frame.
+	 * @param image the decoded frame, as returned by DicomObject.getBufferedImage.
+	 * This image is not modified.
+	 * @param scale the scale factor.
+	 * @param wl the window level, in rescaled units.
+	 * @param ww the window width, in rescaled units.
+	 * @return the rendered image, of type TYPE_INT_RGB. The image is reused
+	 * by the next call.
+	 */
+	public BufferedImage render(BufferedImage image, double scale, int wl, int ww) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int scaledWidth = (int)Math.rint(width * scale);
+		int scaledHeight = (int)Math.rint(height * scale);
+		int pixelSize = image.getColorModel().getPixelSize();
+		int interpolation =
+			((pixelSize == 8) || (width > maxBicubicSize) || (height > maxBicubicSize))
+				? AffineTransformOp.TYPE_NEAREST_NEIGHBOR
+				: AffineTransformOp.TYPE_BICUBIC;
+		AffineTransformOp op = getOp(scale, interpolation);
+		BufferedImage output = getOutput(scaledWidth, scaledHeight);
+
+		if (isGrayscale(image)) {
+			//Scale the stored values, then apply the window to the
+			//scaled values. The scaled values are kept, so a change
+			//of window is only a pass through the lookup table.
+			Raster raster = image.getRaster();
+			boolean extend = signed && (scale != 1.0)
+								&& (interpolation != AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+			if (scale != 1.0) {
+				if ((image != scaledImage) || (scale != scaledScale)) {
+					if (extend) raster = signExtend(raster);
+					if ((scaledRaster == null)
+							|| (scaledRaster.getWidth() != scaledWidth)
+							|| (scaledRaster.getHeight() != scaledHeight)
+							|| (scaledRaster.getTransferType() != raster.getTransferType())) {
+						scaledRaster = raster.createCompatibleWritableRaster(scaledWidth, scaledHeight);
+					}
+					op.filter(raster, scaledRaster);
+					scaledImage = image;
+					scaledScale = scale;
+				}
+				raster = scaledRaster;
+			}
+			getLUT(wl, ww);
+			lookup(raster, (extend ? signedLUT : lut), outputPixels);
+		}
+		else {
+			//Color images are not windowed.
+			Graphics2D g2d = output.createGraphics();
+			if (scale == 1.0) g2d.drawImage(image, 0, 0, null);
+			else g2d.drawImage(image, op, 0, 0);
+			g2d.dispose();
+		}
+		return output;
+	}
+
+	/**
+	 * Determine whether a decoded frame is windowed, in the same way as
+	 * DicomObject: single-band images with 8 to 16 bits stored.
+	 * @param image the decoded frame.
+	 * @return true if the window applies to the image.
+	 */
+	public boolean isGrayscale(BufferedImage image) {
+		return (bitsStored >= 8) && (bitsStored <= 16)
+					&& (image.getColorModel().getPixelSize() <= 16)
+						&& (image.getRaster().getNumBands() == 1);
+	}
+
+	//Sign-extend the stored values of a raster to 16 bits, in a raster
+	//which is reused while its size is unchanged. The stored values may
+	//or may not be sign-extended already; only the stored bits are used.
+	private Raster signExtend(Raster raster) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		if ((signedRaster == null)
+				|| (signedRaster.getWidth() != width)
+				|| (signedRaster.getHeight() != height)) {
+			signedRaster = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, width, height, 1, null);
+		}
+		int shift = 32 - bitsStored;
+		if ((row == null) || (row.length < width)) row = new int[width];
+		for (int y=0; y<height; y++) {
+			raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, row);
+			for (int x=0; x<width; x++) row[x] = (row[x] << shift) >> shift;
+			signedRaster.setSamples(0, y, width, 1, 0, row);
+		}
+		return signedRaster;
+	}
+
+	private AffineTransformOp getOp(double scale, int interpolation) {
+		if ((op == null) || (scale != opScale) || (interpolation != opInterpolation)) {
+			op = new AffineTransformOp(AffineTransform.getScaleInstance(scale, scale), interpolation);
+			opScale = scale;
+			opInterpolation = interpolation;
+		}
+		return op;
+	}
+
+	private BufferedImage getOutput(int width, int height) {
+		if ((output == null) || (output.getWidth() != width) || (output.getHeight() != height)) {
+			output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			outputPixels = ((DataBufferInt)output.getRaster().getDataBuffer()).getData();
+		}
+		return output;
+	}
+
+	//Convert the samples of a single-band raster to RGB values.
+	private void lookup(Raster raster, int[] lut, int[] out) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		if ((sm instanceof ComponentSampleModel)
+				&& ((db instanceof DataBufferUShort) || (db instanceof DataBufferShort) || (db instanceof DataBufferByte))) {
+			ComponentSampleModel csm = (ComponentSampleModel)sm;
+			int stride = csm.getScanlineStride();
+			int pixelStride = csm.getPixelStride();
+			int bank = csm.getBankIndices()[0];
+			int start = db.getOffset() + csm.getOffset(
+							raster.getMinX() - raster.getSampleModelTranslateX(),
+							raster.getMinY() - raster.getSampleModelTranslateY(), 0);
+			int k = 0;
+			if (db instanceof DataBufferByte) {
+				byte[] data = ((DataBufferByte)db).getData(bank);
+				for (int y=0; y<height; y++) {
+					int p = start + y * stride;
+					for (int x=0; x<width; x++, p+=pixelStride) {
+						out[k++] = lut[data[p] & 0xff];
+					}
+				}
+			}
+			else {
+				short[] data = (db instanceof DataBufferUShort)
+								? ((DataBufferUShort)db).getData(bank)
+								: ((DataBufferShort)db).getData(bank);
+				for (int y=0; y<height; y++) {
+					int p = start + y * stride;
+					for (int x=0; x<width; x++, p+=pixelStride) {
+						out[k++] = lut[data[p] & 0xffff];
+					}
+				}
+			}
+		}
+		else {
+			//Any other layout is read a row at a time.
+			if ((row == null) || (row.length < width)) row = new int[width];
+			int k = 0;
+			for (int y=0; y<height; y++) {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, row);
+				for (int x=0; x<width; x++) {
+					out[k++] = lut[row[x] & 0xffff];
+				}
+			}
+		}
+	}
+
+	//Get the lookup table from stored pixel values to RGB values for
+	//a window, making it only if the window has changed. The table
+	//covers all 16-bit values. Values above the range of the stored
+	//values, which only appear where interpolation overshoots, take
+	//the value of the top of the range. (The last entry of the table
+	//is not filled by DicomObject, so the one before it is used.)
+	//For signed data, the table for sign-extended values is made too.
+	private int[] getLUT(int wl, int ww) {
+		if ((lut != null) && (wl == lutWL) && (ww == lutWW)) return lut;
+
+		//Convert the window to stored pixel values.
+		int swl = (int)((wl - intercept) / slope);
+		int sww = (int)(ww / slope);
+
+		int size = 1 << bitsStored;
+		if (gray == null) gray = new byte[size];
+		makeGrayLUT(gray, swl, sww);
+		if (lut == null) lut = new int[1 << 16];
+		for (int i=0; i<size; i++) {
+			int g = gray[i] & 0xff;
+			lut[i] = black | (g << 16) | (g << 8) | g;
+		}
+		Arrays.fill(lut, size, lut.length, lut[size-2]);
+		if (signed) {
+			//Entry i is for the 16-bit signed value (short)i. Values outside
+			//the range of the stored values, which only appear where the
+			//interpolation overshoots, are clamped to the range.
+			int half = size / 2;
+			if (signedLUT == null) signedLUT = new int[1 << 16];
+			for (int i=0; i<signedLUT.length; i++) {
+				int v = Math.max( Math.min((short)i, half - 1), -half );
+				signedLUT[i] = lut[v & (size - 1)];
+			}
+		}
+		lutWL = wl;
+		lutWW = ww;
+		return lut;
+	}
+
+	//Make the gray-scale lookup table for a window, in stored pixel values,
+	//in the same way as DicomObject.
+	private void makeGrayLUT(byte[] lut, int wl, int ww) {
+		int size = lut.length;
+		Arrays.fill(lut, (byte)0);
+		if (ww < 2) ww = 2;
+		int bottom = wl - ww/2;
+		int top = bottom + ww;
+		bottom = Math.max(0, Math.min(bottom, size-1));
+		top = Math.max(Math.min(size-1, top), 0);
+		double step = 255.0 / (top - bottom);
+		if (!inverse) {
+			if (bottom > 0) Arrays.fill(lut, 0, bottom-1, (byte)0);
+			if (top < size-1) Arrays.fill(lut, top, size-1, (byte)-1);
+			for (int i=Math.max(bottom, 0); i<Math.min(top, size); i++) {
+				lut[i] = (byte)((int)(step * (i - bottom)));
+			}
+		}
+		else {
+			if (bottom > 0) Arrays.fill(lut, 0, bottom-1, (byte)-1);
+			if (top < size-1) Arrays.fill(lut, top, size-1, (byte)0);
+			for (int i=Math.max(bottom, 0); i<Math.min(top, size); i++) {
+				lut[i] = (byte)(255 - (int)(step * (i - bottom)));
+			}
+		}
+		//For signed data, the upper half of the range holds negative values.
+		if (signed) Arrays.fill(lut, size/2+1, size-1, (byte)0);
+	}
+}
@@ -0,0 +1,309 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.util.DigestUtil;
+import org.rsna.util.StringUtil;
+
+/**
+ * The import pipeline: each accepted file is anonymized, placed in the
+ * appropriate series directory of the submissions tree, and entered in
+ * the Index. The per-file work is distributed across a pool of worker
+ * threads. An ImportEngine is intended to be used for a single run.
+ * <p>
+ * Instances which have already been imported, in this run or an earlier
+ * one, are recognized by their SOPInstanceUIDs and skipped before any
+ * anonymization is done. Optionally, a hash of the file contents can be
+ * required to match as well, so a corrected instance sent again with the
+ * same SOPInstanceUID is imported.
+ */
+public class ImportEngine {
+
+	static final Logger logger = Logger.getLogger(ImportEngine.class);
+
+	/**
+	 * The interface for objects which receive the result of each file.
+	 * Note: calls are made from the worker threads.
+	 */
+	public interface Listener {
+		public void fileProcessed(ImportResult result);
+	}
+
+	Listener listener;
+	ImportProgress progress = null;
+	ThreadPoolExecutor executor;
+	CompiledScript script;
+	IntegerTable integerTable;
+	ImportJournal journal;
+	FilterScript filterScript = new FilterScript("");
+	boolean filterSRs = true;
+	boolean filterSCs = true;
+	boolean acceptRFs = true;
+	boolean forceIVRLE = false;
+	boolean renameToSOPIUID = false;
+	String dedup = "none";
+
+	/**
+	 * Class constructor.
+	 * @param threads the number of worker threads.
+	 * @param listener the object to receive the result for each file.
+	 */
+	public ImportEngine(int threads, Listener listener) {
+		Configuration config = Configuration.getInstance();
+		this.listener = listener;
+		this.script = CompiledScript.getInstance(
+							new File(config.dicomScriptFile),
+							new File(config.lookupTableFile));
+		this.integerTable = config.getIntegerTable();
+		this.journal = ImportJournal.getInstance();
+		setDedup(config.get("dedup"));
+		threads = Math.max(threads, 1);
+		//Keep the queue short and let the scanning loop do the
+		//work itself when the queue is full, so memory stays flat
+		//no matter how many files are in the tree.
+		executor = new ThreadPoolExecutor(
+						threads, threads, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(4 * threads),
+						new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Set the parameters of the filter stage. The filter script is
+	 * compiled here, once for the run.
+	 * @param filterScript the filter script, or the empty string if all files are to be accepted.
+	 * @param filterSRs true if Structured Reports are to be rejected.
+	 * @param filterSCs true if Secondary Capture objects are to be rejected.
+	 * @param acceptRFs true if reformatted Secondary Capture objects are to be accepted.
+	 */
+	public void setFilter(String filterScript, boolean filterSRs, boolean filterSCs, boolean acceptRFs) {
+		this.filterScript = new FilterScript(filterScript);
+		this.filterSRs = filterSRs;
+		this.filterSCs = filterSCs;
+		this.acceptRFs = acceptRFs;
+	}
+
+	/**
+	 * Set the object which tracks the progress of the run. It is
+	 * updated with each result before the listener is called.
+	 * @param progress the progress, or null if progress is not tracked.
+	 */
+	public void setProgress(ImportProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Set the method for recognizing instances which have already been imported.
+	 * @param dedup "uid" to compare SOPInstanceUIDs, "hash" to compare both
+	 * SOPInstanceUIDs and hashes of the file contents, or "none" to import
+	 * every instance. Any other value, including null, selects "none".
+	 */
+	public void setDedup(String dedup) {
+		dedup = (dedup != null) ? dedup.trim().toLowerCase() : "";
+		this.dedup = (dedup.equals("uid") || dedup.equals("hash")) ? dedup : "none";
+	}
+
+	/**
+	 * Import a file or a directory, wait for all the work to complete,
+	 * and shut down the worker threads. The tree is listed by a
+	 * DirectoryScanner while the workers process the files already found.
+	 * Files recorded in the ImportJournal as done by an earlier, interrupted
+	 * run are skipped. The journal is not cleared here; the caller clears
+	 * it when the whole import is done.
+	 * @param file the file or directory to import.
+	 * @param subdirectories true if subdirectories are to be processed.
+	 * @param filter the filter for selecting files in directories.
+	 */
+	public void importFiles(File file, boolean subdirectories, FileFilter filter) {
+		Configuration config = Configuration.getInstance();
+		DirectoryScanner scanner =
+			new DirectoryScanner(
+					config.getScanThreads(),
+					Math.max( StringUtil.getInt( config.get("scanQueueSize"), 1000 ), 1 ),
+					filter, subdirectories,
+					new Listener() {
+						public void fileProcessed(ImportResult result) { report(result); }
+					});
+		try {
+			scanner.start(file);
+			File next;
+			while ((next = scanner.take()) != null) queue(next);
+		}
+		catch (InterruptedException ex) { scanner.stop(); }
+		finally {
+			executor.shutdown();
+			try { executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+			catch (InterruptedException ex) { executor.shutdownNow(); }
+			journal.commit();
+		}
+	}
+
+	//Queue a file for the workers.
+	private void queue(final File file) {
+		executor.execute( new Runnable() {
+			public void run() {
+				if (journal.isDone(file)) {
+					report( ImportResult.SKIPPED(file, "already imported") );
+					return;
+				}
+				ImportResult result = importFile(file);
+				//Failures and errors are not recorded,
+				//so they are retried when the import resumes.
+				if (result.isOK() || result.isREJECTED()) journal.setDone(file);
+				report(result);
+			}
+		});
+	}
+
+	//Pass a result to the progress and the listener.
+	private void report(ImportResult result) {
+		if (progress != null) progress.fileProcessed(result);
+		listener.fileProcessed(result);
+	}
+
+	/**
+	 * Import a single file.
+	 * @param file the file to import.
+	 * @return the result.
+	 */
+	public ImportResult importFile(File file) {
+		File temp = null;
+		String uid = null;
+		String hash = "";
+		boolean filterResult = true;
+		try {
+			DicomObject dob;
+			if ( ((dob=getDicomObject(file)) != null)
+					&& ( dob.isImage() )
+					&& ( !filterSCs || !dob.isSecondaryCapture() || (acceptRFs && dob.isReformatted()) )
+					&& ( !filterSRs || !dob.isSR() )
+					&& ( filterResult=filterScript.matches(dob) ) ) {
+
+				//Skip the instance if it has been imported already.
+				//It is reserved now, so a copy being processed by another
+				//worker is also skipped. It is recorded in the index only
+				//when its output is in place, and if the import fails, it
+				//is released so the instance can be imported later.
+				String sopiUID = dob.getSOPInstanceUID();
+				if (!dedup.equals("none") && (sopiUID != null) && !sopiUID.trim().equals("")) {
+					if (dedup.equals("hash")) hash = DigestUtil.digest("SHA-256", file, 36);
+					if (!Index.getInstance().addInstance(sopiUID.trim(), hash)) {
+						return ImportResult.DUPLICATE(file, "instance already imported");
+					}
+					uid = sopiUID.trim();
+				}
+
+				File outputDir;
+				try {
+					outputDir = Configuration.getInstance().getOutputDir();
+					outputDir.mkdirs();
+					temp = File.createTempFile("TEMP-", ".dcm", outputDir);
+				}
+				catch (Exception ex) {
+					if (temp != null) temp.delete();
+					if (uid != null) Index.getInstance().removeInstance(uid, hash);
+					return ImportResult.FAILED(file, "Unable to create the output file.");
+				}
+				String origPtName = dob.getPatientName();
+				String origPtID = dob.getPatientID();
+				String origStudyDate = dob.getStudyDate();
+				String origAccessionNumber = dob.getAccessionNumber();
+
+				//Anonymize directly from the source into the temp file,
+				//which is in the root of the outputDir, so the source is
+				//read once and the output is written once.
+				boolean ok =
+					DICOMAnonymizer.anonymize(
+						file, temp,
+						script.getScriptProperties(), script.getLookupTableProperties(), integerTable,
+						forceIVRLE, renameToSOPIUID).isOK();
+
+				if (!ok) {
+					temp.delete();
+					if (uid != null) Index.getInstance().removeInstance(uid, hash);
+					return ImportResult.FAILED(file, "Failed");
+				}
+
+				String spokeName = script.getSpokeName();
+
+				//Figure out where to put the temp file.
+				//It needs to go in the appropriate series subdirectory.
+				//All the elements required for the path precede the
+				//InstanceNumber, so only the start of the file is parsed.
+				DicomHeader anon = new DicomHeader(temp, DicomHeader.afterInstanceNumber);
+				String anonPtName = anon.getPatientName();
+				String anonPtID = anon.getPatientID();
+				String anonStudyDate = anon.getStudyDate();
+				String anonStudyTime = anon.getStudyTime();
+				int k = anonStudyTime.indexOf(".");
+				k = (k >= 0) ? k : anonStudyTime.length();
+				anonStudyTime = anonStudyTime.substring(0,k);
+				String anonSeriesNumber = anon.getSeriesNumber();
+				String anonInstanceNumber = anon.getInstanceNumber();
+				String anonAccessionNumber = anon.getAccessionNumber();
+				GregorianCalendar gc = new GregorianCalendar();
+				int year = gc.get(gc.YEAR);
+				int mon = gc.get(gc.MONTH) + 1;
+				int day = gc.get(gc.DAY_OF_MONTH);
+				String date = String.format("%4d%02d%02d", year, mon, day);
+				File imgdir = new File(outputDir,
+								  spokeName+"-DataUpload-"+date + "/"
+								+ anonPtName + "/"
+								+ "Study-"+anonStudyDate+"T"+anonStudyTime + "/"
+								+ "Series-"+anonSeriesNumber);
+				imgdir.mkdirs();
+				File dest = new File(imgdir, "Image-"+anonInstanceNumber+".dcm");
+
+				//Move the file to the correct directory. This is a
+				//rename within the outputDir tree, so no data is copied.
+				if (dest.exists()) dest.delete();
+				if (!temp.renameTo(dest)) {
+					temp.delete();
+					if (uid != null) Index.getInstance().removeInstance(uid, hash);
+					return ImportResult.FAILED(file, "Unable to move the output file.");
+				}
+
+				//Update the index. The instance is recorded last,
+				//once its output and its patient and study exist.
+				Index index = Index.getInstance();
+				index.addPatient(origPtName, origPtID, anonPtName, anonPtID);
+				index.addStudy(origPtID, origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
+				if (uid != null) index.instanceImported(uid, hash);
+				return ImportResult.OK(file);
+			}
+			else {
+				if (dob == null) return ImportResult.REJECTED(file, "not a DICOM file");
+				else if (filterSRs && dob.isSR()) return ImportResult.REJECTED(file, "Structured Report");
+				else if (filterSCs && dob.isSecondaryCapture() && !(acceptRFs && dob.isReformatted())) {
+					return ImportResult.REJECTED(file, "Secondary Capture");
+				}
+				else if (!dob.isImage()) return ImportResult.REJECTED(file, "not an image");
+				else if (!filterResult) return ImportResult.REJECTED(file, "filter");
+				else return ImportResult.REJECTED(file, "unknown reason");
+			}
+		}
+		catch (Exception ex) {
+			if (temp != null) temp.delete();
+			if (uid != null) Index.getInstance().removeInstance(uid, hash);
+			StringWriter sw = new StringWriter();
+			ex.printStackTrace(new PrintWriter(sw));
+			return ImportResult.ERROR(file, sw.toString());
+		}
+	}
+
+	//Use the object parsed for the Viewer and the Editor if the file has
+	//been selected, but do not keep the objects parsed for the import.
+	private DicomObject getDicomObject(File file) {
+		try { return DicomObjectCache.getInstance().getDicomObject(file, false); }
+		catch (Exception ex) { return null; }
+	}
+}
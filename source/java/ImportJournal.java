@@ -0,0 +1,141 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.File;
+import jdbm.RecordManager;
+import jdbm.htree.HTree;
+import org.apache.log4j.Logger;
+import org.rsna.util.JdbmUtil;
+import org.rsna.util.StringUtil;
+
+/**
+ * A persistent record of the source files which have been completely
+ * processed by the current import, so an import which is interrupted
+ * can be resumed without redoing the files already done.
+ * <p>
+ * Each file is identified by its absolute path, size, and last modified
+ * time; a file which has changed since it was recorded is processed again.
+ * Completions are committed in batches. Before each commit the Index is
+ * flushed, so a file is never recorded as done unless its Index entries
+ * are in the database too. The journal is cleared when an import
+ * finishes, so it only ever describes an unfinished import.
+ */
+public class ImportJournal {
+
+	static final Logger logger = Logger.getLogger(ImportJournal.class);
+	static ImportJournal instance = null;
+
+	static final String journalName = "journal";
+
+	File journalFile;
+	RecordManager recman = null;
+	HTree done = null;
+	int pending = 0;
+	int commitCount = 100;
+
+	/**
+	 * Get the singleton instance of the journal.
+	 */
+	public static synchronized ImportJournal getInstance() {
+		if (instance == null) {
+			instance = new ImportJournal();
+		}
+		return instance;
+	}
+
+	protected ImportJournal() {
+		Configuration config = Configuration.getInstance();
+		journalFile = new File(config.getDatabaseDir(), journalName);
+		commitCount = Math.max( StringUtil.getInt( config.get("journalCommitCount"), 100 ), 1 );
+		open();
+	}
+
+	private void open() {
+		try {
+			recman = JdbmUtil.getRecordManager( journalFile.getPath() );
+			done = JdbmUtil.getHTree(recman, "done");
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to open the import journal; interrupted imports cannot be resumed.");
+			recman = null;
+			done = null;
+		}
+	}
+
+	/**
+	 * Determine whether a file was completely processed by the current import.
+	 * @param file the source file.
+	 * @return true if the file was recorded as done and has not changed since.
+	 */
+	public synchronized boolean isDone(File file) {
+		if (done == null) return false;
+		try {
+			String value = (String)done.get(file.getAbsolutePath());
+			return (value != null) && value.equals(getSignature(file));
+		}
+		catch (Exception ex) { return false; }
+	}
+
+	/**
+	 * Record that a file has been completely processed.
+	 * @param file the source file.
+	 */
+	public synchronized void setDone(File file) {
+		if (done == null) return;
+		try {
+			done.put(file.getAbsolutePath(), getSignature(file));
+			if (++pending >= commitCount) commit();
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to record "+file+" in the import journal");
+		}
+	}
+
+	/**
+	 * Flush the Index and commit the pending completions.
+	 */
+	public synchronized void commit() {
+		if (recman == null) return;
+		Index.getInstance().flush();
+		try {
+			recman.commit();
+			pending = 0;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to commit the import journal", ex);
+		}
+	}
+
+	/**
+	 * Discard all the entries in the journal. This is called when an
+	 * import finishes, so the next import starts from the beginning.
+	 */
+	public synchronized void clear() {
+		JdbmUtil.close(recman);
+		recman = null;
+		done = null;
+		pending = 0;
+		new File(journalFile.getPath() + ".db").delete();
+		new File(journalFile.getPath() + ".lg").delete();
+		open();
+	}
+
+	/**
+	 * Commit and close the journal.
+	 */
+	public synchronized void close() {
+		commit();
+		JdbmUtil.close(recman);
+		recman = null;
+		done = null;
+	}
+
+	//Get a value which changes whenever the file is rewritten.
+	private static String getSignature(File file) {
+		return file.length() + "/" + file.lastModified();
+	}
+}
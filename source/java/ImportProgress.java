@@ -0,0 +1,261 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * The progress of an import run: the number of files and bytes to be
+ * processed, counted from the source while the import runs, and the
+ * number processed so far, from which the throughput and the remaining
+ * time are estimated.
+ * An ImportProgress is updated by the ImportEngine as each file is
+ * processed; it can be read at any time from any thread.
+ */
+public class ImportProgress implements ImportEngine.Listener {
+
+	long startTime;
+	boolean counting = false;
+	Thread counter = null;
+	int totalFiles = 0;
+	long totalBytes = 0;
+	int files = 0;
+	long bytes = 0;
+	long skippedBytes = 0;
+	int accepted = 0;
+	int rejected = 0;
+	int skipped = 0;
+	int duplicates = 0;
+	int failed = 0;
+
+	/**
+	 * Class constructor; start the clock for the run.
+	 */
+	public ImportProgress() {
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start counting the files which will be offered to the import, on a
+	 * background thread, so the import can run while they are counted
+	 * rather than waiting for an extra traversal of the source. The source
+	 * is listed with a DirectoryScanner, so the count selects exactly the
+	 * files the import will, and reads only the directories and the lengths
+	 * of the files, not their contents. Until the count is finished, the
+	 * totals are incomplete and the remaining time is unknown.
+	 * @param roots the files or directories to be imported.
+	 * @param subdirectories true if subdirectories are to be processed.
+	 * @param filter the filter for selecting files in directories.
+	 */
+	public synchronized void startPrescan(final File[] roots, final boolean subdirectories, final FileFilter filter) {
+		counting = true;
+		counter = new Thread("ImportProgress prescan") {
+			public void run() {
+				try {
+					for (File root : roots) {
+						if (!count(root, subdirectories, filter)) break;
+					}
+				}
+				finally {
+					synchronized (ImportProgress.this) { counting = false; }
+				}
+			}
+		};
+		counter.setDaemon(true);
+		counter.start();
+	}
+
+	/**
+	 * End the run: stop the count if it is still running, and if it
+	 * did not finish, take the files processed as the totals.
+	 */
+	public void finish() {
+		Thread thread;
+		synchronized (this) { thread = counter; }
+		if (thread != null) {
+			thread.interrupt();
+			try { thread.join(); }
+			catch (InterruptedException ignore) { }
+		}
+		synchronized (this) {
+			totalFiles = Math.max(totalFiles, files);
+			totalBytes = Math.max(totalBytes, bytes);
+		}
+	}
+
+	//Count the files under one root.
+	//Return false if the count was interrupted.
+	private boolean count(File root, boolean subdirectories, FileFilter filter) {
+		DirectoryScanner scanner =
+			new DirectoryScanner(
+					Configuration.getInstance().getScanThreads(), 1000,
+					filter, subdirectories, new ImportEngine.Listener() {
+						//Unreadable directories are reported by the import itself.
+						public void fileProcessed(ImportResult result) { }
+					});
+		try {
+			scanner.start(root);
+			File file;
+			while ((file = scanner.take()) != null) {
+				long length = file.length();
+				synchronized (this) {
+					totalFiles++;
+					totalBytes += length;
+				}
+			}
+			return true;
+		}
+		catch (InterruptedException ex) {
+			scanner.stop();
+			return false;
+		}
+	}
+
+	/**
+	 * Count the result of one file.
+	 * @param result the result.
+	 */
+	public void fileProcessed(ImportResult result) {
+		long length = result.getFile().length();
+		synchronized (this) {
+			files++;
+			bytes += length;
+			if (result.isOK()) accepted++;
+			else if (result.isREJECTED()) rejected++;
+			else if (result.isSKIPPED()) {
+				skipped++;
+				skippedBytes += length;
+			}
+			else if (result.isDUPLICATE()) duplicates++;
+			else failed++;
+		}
+	}
+
+	public synchronized boolean isCounting() {
+		return counting;
+	}
+
+	public synchronized int getTotalFiles() {
+		return totalFiles;
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int getFileCount() {
+		return files;
+	}
+
+	public synchronized long getByteCount() {
+		return bytes;
+	}
+
+	public synchronized int getAcceptedCount() {
+		return accepted;
+	}
+
+	public synchronized int getRejectedCount() {
+		return rejected;
+	}
+
+	public synchronized int getSkippedCount() {
+		return skipped;
+	}
+
+	public synchronized int getDuplicateCount() {
+		return duplicates;
+	}
+
+	/**
+	 * Get the number of files which failed or caused an error.
+	 * @return the number of failures.
+	 */
+	public synchronized int getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * Get the elapsed time of the import.
+	 * @return the time in milliseconds.
+	 */
+	public synchronized long getElapsedTime() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * Get the number of files processed per second. Files skipped as
+	 * already imported are not included, since they take no time.
+	 * @return the rate, or zero if no time has elapsed.
+	 */
+	public synchronized double getFilesPerSecond() {
+		long time = getElapsedTime();
+		return (time > 0) ? (1000.0 * (files - skipped)) / time : 0.0;
+	}
+
+	/**
+	 * Get the number of bytes processed per second. Files skipped as
+	 * already imported are not included, since they take no time.
+	 * @return the rate, or zero if no time has elapsed.
+	 */
+	public synchronized double getBytesPerSecond() {
+		long time = getElapsedTime();
+		return (time > 0) ? (1000.0 * (bytes - skippedBytes)) / time : 0.0;
+	}
+
+	/**
+	 * Estimate the time to finish the import, from the number of bytes
+	 * remaining and the rate at which bytes have been processed so far.
+	 * @return the estimated time in milliseconds, or -1 if no estimate
+	 * can be made yet.
+	 */
+	public synchronized long getRemainingTime() {
+		if (counting) return -1;
+		double rate = getBytesPerSecond();
+		if (rate <= 0) return -1;
+		long remaining = Math.max(totalBytes - bytes, 0);
+		return (long)(1000.0 * remaining / rate);
+	}
+
+	/**
+	 * Get the fraction of the import which has been done.
+	 * @return the fraction of the total bytes processed, from 0 to 1.
+	 */
+	public synchronized double getFractionDone() {
+		if (totalBytes > 0) return Math.min((double)bytes / totalBytes, 1.0);
+		if (totalFiles > 0) return Math.min((double)files / totalFiles, 1.0);
+		return 0.0;
+	}
+
+	/**
+	 * Get a one-line description of the progress of the import.
+	 * @return the description.
+	 */
+	public synchronized String toString() {
+		long eta = getRemainingTime();
+		String total = counting
+						? ("at least " + Math.max(totalFiles, files))
+						: String.format("%d (%.0f%%)", totalFiles, 100.0 * getFractionDone());
+		return String.format(
+			"%d of %s files   %.1f files/s   %.1f MB/s   ETA %s   "
+			+ "accepted %d   rejected %d   skipped %d   duplicates %d   failed %d",
+			files, total,
+			getFilesPerSecond(), getBytesPerSecond() / 1048576.0,
+			counting ? "unknown" : ((eta < 0) ? "--:--:--" : formatTime(eta)),
+			accepted, rejected, skipped, duplicates, failed);
+	}
+
+	/**
+	 * Format a time as hours, minutes, and seconds.
+	 * @param millis the time in milliseconds.
+	 * @return the time in the form h:mm:ss.
+	 */
+	public static String formatTime(long millis) {
+		long s = (millis + 999) / 1000;
+		return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+	}
+}
@@ -0,0 +1,95 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.File;
+
+/**
+ * A class to encapsulate the result of importing a single file.
+ */
+public class ImportResult {
+
+	static final String ok = "OK";
+	static final String failed = "Failed";
+	static final String rejected = "Rejected";
+	static final String error = "Error";
+	static final String skipped = "Skipped";
+	static final String duplicate = "Duplicate";
+
+	File file;
+	String status;
+	String message;
+
+	protected ImportResult(File file, String status, String message) {
+		this.file = file;
+		this.status = status;
+		this.message = message;
+	}
+
+	public static ImportResult OK(File file) {
+		return new ImportResult(file, ok, "");
+	}
+
+	public static ImportResult FAILED(File file, String message) {
+		return new ImportResult(file, failed, message);
+	}
+
+	public static ImportResult REJECTED(File file, String reason) {
+		return new ImportResult(file, rejected, reason);
+	}
+
+	public static ImportResult ERROR(File file, String message) {
+		return new ImportResult(file, error, message);
+	}
+
+	public static ImportResult SKIPPED(File file, String reason) {
+		return new ImportResult(file, skipped, reason);
+	}
+
+	public static ImportResult DUPLICATE(File file, String message) {
+		return new ImportResult(file, duplicate, message);
+	}
+
+	public boolean isOK() {
+		return status.equals(ok);
+	}
+
+	public boolean isFAILED() {
+		return status.equals(failed);
+	}
+
+	public boolean isREJECTED() {
+		return status.equals(rejected);
+	}
+
+	public boolean isERROR() {
+		return status.equals(error);
+	}
+
+	public boolean isSKIPPED() {
+		return status.equals(skipped);
+	}
+
+	public boolean isDUPLICATE() {
+		return status.equals(duplicate);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String toString() {
+		return status + ": " + file + (message.equals("") ? "" : " (" + message + ")");
+	}
+}
@@ -0,0 +1,159 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The counts of the results of an import run. An ImportSummary can be
+ * used as the listener of an ImportEngine, or fed the results by another
+ * listener. The summary is written as a list of name=value lines, one
+ * count per line, so it can be read by scripts or loaded as Properties.
+ */
+public class ImportSummary implements ImportEngine.Listener {
+
+	long startTime;
+	long endTime = 0;
+	int ok = 0;
+	int failed = 0;
+	int rejected = 0;
+	int errors = 0;
+	int skipped = 0;
+	int duplicates = 0;
+	TreeMap<String,Integer> reasons = new TreeMap<String,Integer>();
+	TreeMap<String,Integer> skipReasons = new TreeMap<String,Integer>();
+
+	/**
+	 * Class constructor; start the clock for the run.
+	 */
+	public ImportSummary() {
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Count the result of one file.
+	 * @param result the result.
+	 */
+	public synchronized void fileProcessed(ImportResult result) {
+		if (result.isOK()) ok++;
+		else if (result.isFAILED()) failed++;
+		else if (result.isERROR()) errors++;
+		else if (result.isREJECTED()) {
+			rejected++;
+			count(reasons, result.getMessage());
+		}
+		else if (result.isSKIPPED()) {
+			skipped++;
+			count(skipReasons, result.getMessage());
+		}
+		else if (result.isDUPLICATE()) duplicates++;
+	}
+
+	private static void count(TreeMap<String,Integer> map, String reason) {
+		Integer n = map.get(reason);
+		map.put(reason, (n == null) ? 1 : n.intValue() + 1);
+	}
+
+	/**
+	 * Stop the clock for the run.
+	 */
+	public synchronized void finish() {
+		endTime = System.currentTimeMillis();
+	}
+
+	public synchronized int getFileCount() {
+		return ok + failed + rejected + errors + skipped + duplicates;
+	}
+
+	public synchronized int getOKCount() {
+		return ok;
+	}
+
+	public synchronized int getFailedCount() {
+		return failed;
+	}
+
+	public synchronized int getRejectedCount() {
+		return rejected;
+	}
+
+	public synchronized int getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * Get the number of files skipped as already imported
+	 * by an earlier, interrupted run.
+	 * @return the number of files skipped.
+	 */
+	public synchronized int getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Get the number of files skipped because their instances
+	 * were already in the index.
+	 * @return the number of duplicates.
+	 */
+	public synchronized int getDuplicateCount() {
+		return duplicates;
+	}
+
+	/**
+	 * Get the elapsed time of the run.
+	 * @return the time in milliseconds from the start of the run
+	 * to its finish, or to now if the run is not finished.
+	 */
+	public synchronized long getElapsedTime() {
+		long end = (endTime != 0) ? endTime : System.currentTimeMillis();
+		return end - startTime;
+	}
+
+	/**
+	 * Get the summary as an ordered map of names to values.
+	 * Rejected and skipped files are counted in total and by reason,
+	 * the names of the reasons having spaces replaced by underscores.
+	 * Duplicates are counted separately from the skipped files.
+	 * @return the summary.
+	 */
+	public synchronized LinkedHashMap<String,String> getValues() {
+		LinkedHashMap<String,String> values = new LinkedHashMap<String,String>();
+		values.put("files", Integer.toString(getFileCount()));
+		values.put("ok", Integer.toString(ok));
+		values.put("failed", Integer.toString(failed));
+		values.put("rejected", Integer.toString(rejected));
+		for (String reason : reasons.keySet()) {
+			values.put("rejected."+reason.replace(" ", "_"), reasons.get(reason).toString());
+		}
+		values.put("skipped", Integer.toString(skipped));
+		for (String reason : skipReasons.keySet()) {
+			values.put("skipped."+reason.replace(" ", "_"), skipReasons.get(reason).toString());
+		}
+		values.put("duplicates", Integer.toString(duplicates));
+		values.put("errors", Integer.toString(errors));
+		values.put("elapsedMillis", Long.toString(getElapsedTime()));
+		return values;
+	}
+
+	/**
+	 * Write the summary.
+	 * @param writer the destination.
+	 */
+	public void write(Writer writer) throws IOException {
+		for (Map.Entry<String,String> entry : getValues().entrySet()) {
+			writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+		}
+		writer.flush();
+	}
+
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try { write(sw); }
+		catch (IOException neverThrown) { }
+		return sw.toString();
+	}
+}
@@ -7,15 +7,35 @@ package org.jp.deidentifier;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import jdbm.RecordManager;
+import jdbm.btree.BTree;
 import jdbm.htree.HTree;
 import jdbm.helper.FastIterator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
 import org.apache.log4j.Logger;
 import org.rsna.util.JdbmUtil;
+import org.rsna.util.StringUtil;
 
 /**
  * An index of patients, containing PHI and anonymized values for PatientName and PatientID.
+ * <p>
+ * Updates are written behind: they are held in memory, duplicates are
+ * dropped, and only real changes are written to the database, in batches.
+ * Pending updates are written before any read of the index, so readers
+ * always see them.
+ * <p>
+ * In addition to the HTrees, the index maintains a BTree of the inverse
+ * patient entries, keyed by lower-case anonymized PatientName, which
+ * supports sorted listing, paging, and prefix searches without loading
+ * and sorting the whole index.
+ * <p>
+ * The index also records the PHI SOPInstanceUID of every imported instance,
+ * so instances which have already been imported can be recognized before
+ * any work is done on them.
  */
 public class Index {
 
@@ -26,11 +46,21 @@ public class Index {
     public HTree fwdPatientIndex = null;
     public HTree invPatientIndex = null;
     public HTree fwdStudyIndex = null;
+    public BTree sortedPatientIndex = null;
+    public HTree instanceIndex = null;
+
+    HashMap<String,PatientIndexEntry[]> pendingPatients = new HashMap<String,PatientIndexEntry[]>();
+    HashMap<String,StudyIndexEntry> pendingStudies = new HashMap<String,StudyIndexEntry>();
+    HashMap<String,String> pendingInstances = new HashMap<String,String>();
+    HashSet<String> importingInstances = new HashSet<String>();
+    LRUCache<String,String> knownPatients = new LRUCache<String,String>(10000);
+    LRUCache<String,StudyIndexEntry> knownStudies = new LRUCache<String,StudyIndexEntry>(1000);
+    int flushCount = 100;
     
 	/**
 	 * Get the singleton instance of the index.
 	 */
-    public static Index getInstance() {
+    public static synchronized Index getInstance() {
 		if (instance == null) {
 			instance = new Index();
 		}
@@ -38,15 +68,72 @@ public class Index {
 	}
 
 	protected Index() {
-		File databaseDir = Configuration.getInstance().getDatabaseDir();
+		Configuration config = Configuration.getInstance();
+		File databaseDir = config.getDatabaseDir();
 		File indexFile = new File(databaseDir, "index");
 		getIndex(indexFile.getPath());
+		setFlushCount( StringUtil.getInt( config.get("indexFlushCount"), 100 ) );
+	}
+
+	/**
+	 * Set the number of pending updates at which they are written to the database.
+	 * @param count the maximum number of pending updates.
+	 */
+	public synchronized void setFlushCount(int count) {
+		flushCount = Math.max(count, 1);
+	}
+
+	/**
+	 * Write any pending updates to the database and commit them.
+	 */
+	public synchronized void flush() {
+		if (pendingPatients.isEmpty() && pendingStudies.isEmpty() && pendingInstances.isEmpty()) return;
+		try {
+			for (PatientIndexEntry[] entries : pendingPatients.values()) {
+				fwdPatientIndex.put(entries[0].key.toLowerCase(), entries[0]);
+				invPatientIndex.put(entries[1].key.toLowerCase(), entries[1]);
+				sortedPatientIndex.insert(entries[1].key.toLowerCase(), entries[1], true);
+			}
+			for (StudyIndexEntry entry : pendingStudies.values()) {
+				fwdStudyIndex.put(entry.key, entry);
+			}
+			for (String uid : pendingInstances.keySet()) {
+				instanceIndex.put(uid, pendingInstances.get(uid));
+			}
+			recman.commit();
+		}
+		catch (Exception ex) {
+			//Keep the pending updates, so they are retried by the next flush.
+			logger.warn("Unable to update the indexes.", ex);
+			rollback();
+			return;
+		}
+		pendingPatients.clear();
+		pendingStudies.clear();
+		pendingInstances.clear();
+	}
+
+	//Undo a failed flush. The trees are reloaded, since their in-memory
+	//state may not match the database after the rollback, and the pending
+	//entries are removed from the caches of known entries, so they are not
+	//taken to be in the index.
+	private void rollback() {
+		try {
+			recman.rollback();
+			loadTrees();
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to roll back the indexes.", ex);
+		}
+		for (String key : pendingPatients.keySet()) knownPatients.remove(key);
+		for (String key : pendingStudies.keySet()) knownStudies.remove(key);
 	}
 
 	/**
 	 * Commit and close the index.
 	 */
-	public void close() {
+	public synchronized void close() {
+		flush();
 		if (recman != null) {
 			try {
 				recman.commit();
@@ -65,16 +152,15 @@ public class Index {
 	 * @param anonPtName the anonymized patient name
 	 * @param anonPtID the anonymized patient ID
 	 */
-	public void addPatient(String origPtName, String origPtID, String anonPtName, String anonPtID) {
-		try {
-			PatientIndexEntry fwdEntry = new PatientIndexEntry(origPtID, anonPtName, anonPtID);
-			PatientIndexEntry invEntry = new PatientIndexEntry(anonPtName, origPtName, origPtID);
-			fwdPatientIndex.put(fwdEntry.key.toLowerCase(), fwdEntry);
-			invPatientIndex.put(invEntry.key.toLowerCase(), invEntry);
-		}
-		catch (Exception ex) {
-			logger.warn("Unable to access the patient indexes.");
-		}
+	public synchronized void addPatient(String origPtName, String origPtID, String anonPtName, String anonPtID) {
+		String key = origPtID.toLowerCase();
+		String value = anonPtName + "\\" + anonPtID + "\\" + origPtName;
+		if (value.equals(knownPatients.get(key))) return;
+		PatientIndexEntry fwdEntry = new PatientIndexEntry(origPtID, anonPtName, anonPtID);
+		PatientIndexEntry invEntry = new PatientIndexEntry(anonPtName, origPtName, origPtID);
+		pendingPatients.put(key, new PatientIndexEntry[] { fwdEntry, invEntry });
+		knownPatients.put(key, value);
+		flushIfFull();
 	}
 	
 	/**
@@ -85,18 +171,114 @@ public class Index {
 	 * @param anonStudyDate the anonymized study date
 	 * @param anonAccessionNumber the anonymized accession number
 	 */
-	public void addStudy(String origPtID, String origStudyDate, String origAccessionNumber, String anonStudyDate, String anonAccessionNumber) {
+	public synchronized void addStudy(String origPtID, String origStudyDate, String origAccessionNumber, String anonStudyDate, String anonAccessionNumber) {
 		try {
-			StudyIndexEntry entry = (StudyIndexEntry) fwdStudyIndex.get(origPtID);
-			if (entry == null) entry = new StudyIndexEntry(origPtID);
+			StudyIndexEntry entry = knownStudies.get(origPtID);
+			if (entry == null) {
+				//An entry which has been evicted from the cache
+				//may not have been written to the database yet.
+				entry = pendingStudies.get(origPtID);
+				if (entry == null) entry = (StudyIndexEntry) fwdStudyIndex.get(origPtID);
+				if (entry == null) entry = new StudyIndexEntry(origPtID);
+				knownStudies.put(origPtID, entry);
+			}
 			Study study = new Study(origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
-			entry.add(study);
-			fwdStudyIndex.put(origPtID, entry);
+			if (entry.add(study)) {
+				pendingStudies.put(origPtID, entry);
+				flushIfFull();
+			}
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to access the study index.");
 		}
 	}
+
+	/**
+	 * Reserve an instance for import, unless it has been imported already
+	 * or is being imported. An instance is a duplicate if its SOPInstanceUID
+	 * is in the index and, when a hash is supplied, the recorded hash is the
+	 * same. A reserved instance is held in memory only, so a concurrent copy
+	 * is skipped, but it is not written to the index until instanceImported
+	 * is called, so an instance whose output was never written is not
+	 * recorded as imported if the program stops.
+	 * @param uid the PHI SOPInstanceUID
+	 * @param hash the hash of the source file, or the empty string if
+	 * instances are to be identified by SOPInstanceUID alone.
+	 * @return true if the instance was reserved; false if it is a duplicate.
+	 */
+	public synchronized boolean addInstance(String uid, String hash) {
+		String key = uid + "\\" + hash;
+		if (importingInstances.contains(key)) return false;
+		try {
+			String value = pendingInstances.get(uid);
+			if (value == null) value = (String)instanceIndex.get(uid);
+			if ((value != null) && value.equals(hash)) return false;
+			if ((value != null) && hash.equals("")) return false;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to access the instance index.");
+		}
+		importingInstances.add(key);
+		return true;
+	}
+
+	/**
+	 * Record an instance reserved by addInstance as imported,
+	 * once its output has been written.
+	 * @param uid the PHI SOPInstanceUID
+	 * @param hash the hash supplied to addInstance.
+	 */
+	public synchronized void instanceImported(String uid, String hash) {
+		importingInstances.remove(uid + "\\" + hash);
+		pendingInstances.put(uid, hash);
+		flushIfFull();
+	}
+
+	/**
+	 * Release an instance reserved by addInstance,
+	 * when its import fails.
+	 * @param uid the PHI SOPInstanceUID
+	 * @param hash the hash supplied to addInstance.
+	 */
+	public synchronized void removeInstance(String uid, String hash) {
+		importingInstances.remove(uid + "\\" + hash);
+	}
+
+	/**
+	 * Remove all the instances from the index, so every instance can be
+	 * imported again; for example, after the anonymizer script or the
+	 * SITEID has changed, or the output directory has been deleted.
+	 * Instances being imported remain reserved until their imports end.
+	 * The entries are removed and committed in batches, so the memory
+	 * used does not depend on the size of the index.
+	 * @return the number of instances removed.
+	 */
+	public synchronized int clearInstances() {
+		flush();
+		pendingInstances.clear();
+		int count = 0;
+		try {
+			LinkedList<Object> keys = new LinkedList<Object>();
+			do {
+				keys.clear();
+				FastIterator fit = instanceIndex.keys();
+				Object key;
+				while ((keys.size() < 1000) && ((key = fit.next()) != null)) keys.add(key);
+				for (Object k : keys) instanceIndex.remove(k);
+				recman.commit();
+				count += keys.size();
+			} while (!keys.isEmpty());
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to clear the instance index.", ex);
+			rollback();
+		}
+		return count;
+	}
+
+	private void flushIfFull() {
+		if (pendingPatients.size() + pendingStudies.size() + pendingInstances.size() >= flushCount) flush();
+	}
 	
 	/**
 	 * Get an entry from the inverse patient index (mapping an anonymized 
@@ -104,7 +286,8 @@ public class Index {
 	 * @param key the anonymized PtName
 	 * @return the PHI PatientIndexEntry corresponding to the anonymized PtName.
 	 */
-	public PatientIndexEntry getInvEntry(String key) {
+	public synchronized PatientIndexEntry getInvEntry(String key) {
+		flush();
 		try { return (PatientIndexEntry)invPatientIndex.get(key.toLowerCase()); }
 		catch (Exception ex) { return null; }
 	}
@@ -115,7 +298,8 @@ public class Index {
 	 * @param key the PHI PtName
 	 * @return the anonymized PatientIndexEntry corresponding to the PHI PtName.
 	 */
-	public PatientIndexEntry getFwdEntry(String key) {
+	public synchronized PatientIndexEntry getFwdEntry(String key) {
+		flush();
 		try { return (PatientIndexEntry)fwdPatientIndex.get(key.toLowerCase()); }
 		catch (Exception ex) { return null; }
 	}
@@ -125,7 +309,8 @@ public class Index {
 	 * @param key the PHI PatientID
 	 * @return the study index entry for the PHI PatientID
 	 */
-	public StudyIndexEntry getFwdStudyEntry(String key) {
+	public synchronized StudyIndexEntry getFwdStudyEntry(String key) {
+		flush();
 		try { return (StudyIndexEntry)fwdStudyIndex.get(key.toLowerCase()); }
 		catch (Exception ex) { return null; }
 	}
@@ -133,41 +318,174 @@ public class Index {
 	/**
 	 * List the entries in the index, in alphabetical order by anonymized PatientName.
 	 * The array consists of pairs of IndexEntries, inv[0], fwd[0], inv[1], fwd[1], etc.
+	 * The inverse entries are read in order from the sorted index, and the forward
+	 * index is read in a single pass over its values.
 	 */
-	public PatientIndexEntry[] listPatientIndex() {
+	public synchronized PatientIndexEntry[] listPatientIndex() {
+		flush();
 		try {
-			FastIterator fit = invPatientIndex.keys();
+			//Load the forward index, keyed by PHI PatientID.
+			HashMap<String,PatientIndexEntry> fwdEntries = new HashMap<String,PatientIndexEntry>();
+			FastIterator fit = fwdPatientIndex.values();
+			Object value;
+			while ( (value=fit.next()) != null ) {
+				PatientIndexEntry fwdPIE = (PatientIndexEntry)value;
+				fwdEntries.put(fwdPIE.key.toLowerCase(), fwdPIE);
+			}
+
+			//Pair the inverse entries with their forward entries.
 			LinkedList<PatientIndexEntry> list = new LinkedList<PatientIndexEntry>();
-			Object key;
-			while ( (key=fit.next()) != null ) {
-				PatientIndexEntry invPIE = getInvEntry((String)key);
-				if (invPIE != null) {
-					if (invPIE.id != null) {
-						PatientIndexEntry fwdPIE = getFwdEntry(invPIE.id);
-						if (fwdPIE != null) list.add(invPIE);
-						else {
-							System.out.println("Index.listPatientIndex: getInvEntry returned != null for key \""+((String)key)+"\""); 
-							System.out.println("   but getFwdEntry returned null for id \""+(invPIE.id)+"\""); 
-						}
+			TupleBrowser browser = sortedPatientIndex.browse();
+			Tuple tuple = new Tuple();
+			while (browser.getNext(tuple)) {
+				PatientIndexEntry invPIE = (PatientIndexEntry)tuple.getValue();
+				if (invPIE.id != null) {
+					PatientIndexEntry fwdPIE = fwdEntries.get(invPIE.id.toLowerCase());
+					if (fwdPIE != null) {
+						list.add(invPIE);
+						list.add(fwdPIE);
+					}
+					else {
+						System.out.println("Index.listPatientIndex: inverse entry found for key \""+invPIE.key+"\""); 
+						System.out.println("   but no forward entry found for id \""+(invPIE.id)+"\""); 
 					}
 				}
-				else System.out.println("Index.listPatientIndex: getInvEntry returned null for \""+((String)key)+"\""); 
 			}
-			PatientIndexEntry[] entries = new PatientIndexEntry[list.size()];
-			entries = list.toArray(entries);
-			Arrays.sort(entries);
-			PatientIndexEntry[] invfwd = new PatientIndexEntry[2*entries.length];
-			for (int i=0; i<entries.length; i++) {
-				invfwd[2*i] = entries[i];
-				invfwd[2*i+1] = getFwdEntry(entries[i].id);
-			}
-			return invfwd;
+			return list.toArray(new PatientIndexEntry[list.size()]);
 		}
 		catch (Exception ex) { 
 			ex.printStackTrace();
 			return new PatientIndexEntry[0];
 		}
 	}
+
+	/**
+	 * Get the number of patients in the index.
+	 * @return the number of entries in the sorted patient index.
+	 */
+	public synchronized int getPatientCount() {
+		flush();
+		return sortedPatientIndex.size();
+	}
+
+	/**
+	 * List a page of entries in the index, in alphabetical order by anonymized PatientName.
+	 * The array consists of pairs of IndexEntries, as for listPatientIndex(), except
+	 * that the forward entry is null for any patient which has none.
+	 * The index is read from whichever end is nearer the page.
+	 * @param first the position of the first patient in the page.
+	 * @param count the maximum number of patients in the page.
+	 * @return the page of entries.
+	 */
+	public synchronized PatientIndexEntry[] listPatientIndex(int first, int count) {
+		flush();
+		try {
+			int size = sortedPatientIndex.size();
+			if (first <= size / 2) return list(sortedPatientIndex.browse(), first, count, null);
+			//The page is nearer the end, so step back from the end to the
+			//first patient in the page, and list forward from there.
+			TupleBrowser browser = sortedPatientIndex.browse(null);
+			Tuple tuple = new Tuple();
+			for (int i=size-first; (i > 0) && browser.getPrevious(tuple); i--) ;
+			return list(browser, 0, count, null);
+		}
+		catch (Exception ex) {
+			ex.printStackTrace();
+			return new PatientIndexEntry[0];
+		}
+	}
+
+	/**
+	 * List a page of entries in the index, in alphabetical order by anonymized PatientName,
+	 * starting at the first patient whose anonymized PatientName is not less than a key.
+	 * @param key the anonymized PatientName at which to start the page (not case-sensitive).
+	 * @param count the maximum number of patients in the page.
+	 * @return the page of entries, as for listPatientIndex(int, int).
+	 */
+	public synchronized PatientIndexEntry[] listPatientIndex(String key, int count) {
+		flush();
+		try { return list(sortedPatientIndex.browse(key.toLowerCase()), 0, count, null); }
+		catch (Exception ex) {
+			ex.printStackTrace();
+			return new PatientIndexEntry[0];
+		}
+	}
+
+	/**
+	 * List a page of entries in the index, in alphabetical order by anonymized PatientName,
+	 * starting after the patient with a specified anonymized PatientName. This allows
+	 * the whole index to be traversed a page at a time, each page continuing from the
+	 * last key of the previous one.
+	 * @param key the anonymized PatientName of the last patient in the previous page
+	 * (not case-sensitive), or null to start at the beginning of the index.
+	 * @param count the maximum number of patients in the page.
+	 * @return the page of entries, as for listPatientIndex(int, int).
+	 */
+	public synchronized PatientIndexEntry[] listPatientIndexAfter(String key, int count) {
+		return listPatientIndexAfter(key, 0, count);
+	}
+
+	/**
+	 * List a page of entries in the index, in alphabetical order by anonymized PatientName,
+	 * starting a number of patients after the patient with a specified anonymized PatientName.
+	 * This allows a page to be found from the last key of an earlier page, without
+	 * skipping through the index from the start.
+	 * @param key the anonymized PatientName of the last patient in an earlier page
+	 * (not case-sensitive), or null to start at the beginning of the index.
+	 * @param skip the number of patients after the key to skip.
+	 * @param count the maximum number of patients in the page.
+	 * @return the page of entries, as for listPatientIndex(int, int).
+	 */
+	public synchronized PatientIndexEntry[] listPatientIndexAfter(String key, int skip, int count) {
+		flush();
+		try {
+			if (key == null) return list(sortedPatientIndex.browse(), skip, count, null);
+			key = key.toLowerCase();
+			TupleBrowser browser = sortedPatientIndex.browse(key);
+			Tuple tuple = new Tuple();
+			if (browser.getNext(tuple)) {
+				if (!tuple.getKey().equals(key)) browser.getPrevious(tuple);
+			}
+			return list(browser, skip, count, null);
+		}
+		catch (Exception ex) {
+			ex.printStackTrace();
+			return new PatientIndexEntry[0];
+		}
+	}
+
+	/**
+	 * Find the patients whose anonymized PatientNames start with a prefix.
+	 * @param prefix the start of the anonymized PatientName (not case-sensitive).
+	 * @param count the maximum number of patients to return.
+	 * @return the matching entries, as for listPatientIndex(int, int).
+	 */
+	public synchronized PatientIndexEntry[] findPatients(String prefix, int count) {
+		flush();
+		prefix = prefix.toLowerCase();
+		try { return list(sortedPatientIndex.browse(prefix), 0, count, prefix); }
+		catch (Exception ex) {
+			ex.printStackTrace();
+			return new PatientIndexEntry[0];
+		}
+	}
+
+	//Collect inverse/forward pairs from a browser of the sorted index.
+	private PatientIndexEntry[] list(TupleBrowser browser, int skip, int count, String prefix) throws Exception {
+		LinkedList<PatientIndexEntry> list = new LinkedList<PatientIndexEntry>();
+		Tuple tuple = new Tuple();
+		while ((count > 0) && browser.getNext(tuple)) {
+			if ((prefix != null) && !((String)tuple.getKey()).startsWith(prefix)) break;
+			if (skip > 0) { skip--; continue; }
+			PatientIndexEntry invPIE = (PatientIndexEntry)tuple.getValue();
+			PatientIndexEntry fwdPIE = null;
+			if (invPIE.id != null) fwdPIE = (PatientIndexEntry)fwdPatientIndex.get(invPIE.id.toLowerCase());
+			list.add(invPIE);
+			list.add(fwdPIE);
+			count--;
+		}
+		return list.toArray(new PatientIndexEntry[list.size()]);
+	}
 	
 	/**
 	 * List the studies for a patient, in chronological order by original study date
@@ -175,7 +493,8 @@ public class Index {
 	 * @param key the PHI PatientID
 	 * @return the array of studies for the patient.
 	 */
-	public Study[] listStudiesFor(String origPatientID) {
+	public synchronized Study[] listStudiesFor(String origPatientID) {
+		flush();
 		try {
 			StudyIndexEntry ie = (StudyIndexEntry)fwdStudyIndex.get(origPatientID);
 			if (ie == null) return new Study[0];
@@ -189,17 +508,38 @@ public class Index {
 		}
 	}
 
-	//Load the index HTrees
+	//Create the sorted patient index from the inverse
+	//patient index of a database which predates it.
+	private void buildSortedPatientIndex() throws Exception {
+		FastIterator fit = invPatientIndex.values();
+		Object value;
+		while ( (value=fit.next()) != null ) {
+			PatientIndexEntry invPIE = (PatientIndexEntry)value;
+			sortedPatientIndex.insert(invPIE.key.toLowerCase(), invPIE, true);
+		}
+		recman.commit();
+		logger.info("Sorted patient index created ("+sortedPatientIndex.size()+" entries)");
+	}
+
+	//Load the index trees
 	private void getIndex(String indexPath) {
 		try {
 			recman				= JdbmUtil.getRecordManager( indexPath );
-			fwdPatientIndex		= JdbmUtil.getHTree(recman, "fwdPatientIndex");
-			invPatientIndex		= JdbmUtil.getHTree(recman, "invPatientIndex");
-			fwdStudyIndex		= JdbmUtil.getHTree(recman, "fwdStudyIndex");
+			boolean sorted		= JdbmUtil.containsNamedObject(recman, "sortedPatientIndex");
+			loadTrees();
+			if (!sorted) buildSortedPatientIndex();
 		}
 		catch (Exception ex) {
 			recman = null;
 			logger.warn("Unable to load the indexes.");
 		}
 	}
+
+	private void loadTrees() throws Exception {
+		fwdPatientIndex		= JdbmUtil.getHTree(recman, "fwdPatientIndex");
+		invPatientIndex		= JdbmUtil.getHTree(recman, "invPatientIndex");
+		fwdStudyIndex		= JdbmUtil.getHTree(recman, "fwdStudyIndex");
+		instanceIndex		= JdbmUtil.getHTree(recman, "instanceIndex");
+		sortedPatientIndex	= JdbmUtil.getBTree(recman, "sortedPatientIndex");
+	}
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.io.*;
+import org.apache.log4j.Logger;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.rsna.util.FileUtil;
+
+/**
+ * Export the Index as a spreadsheet or a CSV file. The patients are read
+ * from the Index a page at a time and the rows are streamed to the file,
+ * so the memory required does not depend on the size of the Index.
+ */
+public class IndexExporter {
+
+	static final Logger logger = Logger.getLogger(IndexExporter.class);
+
+	public static final String[] columnNames = new String[] {
+		"Trial-PatientName",
+		"Trial-PatientID",
+		"PHI-PatientName",
+		"PHI-PatientID",
+		"Trial-StudyDate",
+		"Trial-Accession",
+		"PHI-StudyDate",
+		"PHI-Accession"
+	};
+
+	static final int pageSize = 500;
+	static final int rowWindow = 100;
+	static final int maxColumnWidth = 60;
+
+	Index index;
+
+	/**
+	 * Class constructor.
+	 */
+	public IndexExporter() {
+		index = Index.getInstance();
+	}
+
+	/**
+	 * Export the Index, choosing the format from the extension of the file.
+	 * Files ending in ".csv" are written as CSV; all others as XLSX.
+	 * @param file the output file.
+	 * @return the number of patients exported.
+	 * @throws Exception if the file cannot be written.
+	 */
+	public int export(File file) throws Exception {
+		if (file.getName().toLowerCase().endsWith(".csv")) return exportCSV(file);
+		else return exportXLSX(file);
+	}
+
+	/**
+	 * Export the Index as an XLSX spreadsheet. Only a window of rows is
+	 * held in memory; the rest are flushed to a temporary file as the
+	 * sheet is built. Column widths are computed from the lengths of the
+	 * values as they are written, since autosizing requires all the rows.
+	 * @param file the output file.
+	 * @return the number of patients exported.
+	 * @throws Exception if the file cannot be written.
+	 */
+	public int exportXLSX(File file) throws Exception {
+		SXSSFWorkbook wb = new SXSSFWorkbook(rowWindow);
+		FileOutputStream fos = null;
+		try {
+			Sheet sheet = wb.createSheet("Index");
+			CellStyle bold = wb.createCellStyle();
+			Font font = wb.createFont();
+			font.setBold(true);
+			bold.setFont(font);
+			final int[] widths = new int[columnNames.length];
+			final Sheet s = sheet;
+			final CellStyle b = bold;
+			RowWriter writer = new RowWriter() {
+				int rowNumber = 0;
+				public void write(String[] values, boolean header) {
+					Row row = s.createRow(rowNumber++);
+					for (int i=0; i<values.length; i++) {
+						if (values[i] == null) continue;
+						Cell cell = row.createCell(i);
+						cell.setCellValue(values[i]);
+						if (header) cell.setCellStyle(b);
+						widths[i] = Math.max(widths[i], values[i].length());
+					}
+				}
+			};
+			int count = write(writer);
+			for (int i=0; i<widths.length; i++) {
+				int width = Math.min(widths[i] + 2, maxColumnWidth);
+				sheet.setColumnWidth(i, width * 256);
+			}
+			fos = new FileOutputStream(file);
+			wb.write(fos);
+			return count;
+		}
+		finally {
+			FileUtil.close(fos);
+			wb.dispose();
+		}
+	}
+
+	/**
+	 * Export the Index as a CSV file, with the same rows and columns
+	 * as the spreadsheet.
+	 * @param file the output file.
+	 * @return the number of patients exported.
+	 * @throws Exception if the file cannot be written.
+	 */
+	public int exportCSV(File file) throws Exception {
+		BufferedWriter bw = null;
+		try {
+			bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), FileUtil.utf8));
+			final BufferedWriter w = bw;
+			RowWriter writer = new RowWriter() {
+				public void write(String[] values, boolean header) throws Exception {
+					for (int i=0; i<values.length; i++) {
+						if (i > 0) w.write(",");
+						if (values[i] != null) w.write(escape(values[i]));
+					}
+					w.write("\r\n");
+				}
+			};
+			return write(writer);
+		}
+		finally { FileUtil.close(bw); }
+	}
+
+	interface RowWriter {
+		public void write(String[] values, boolean header) throws Exception;
+	}
+
+	//Write the header and all the patient and study rows, a page of
+	//patients at a time. Each page continues from the last patient
+	//of the previous page, so each page is a short browse of the Index.
+	private int write(RowWriter writer) throws Exception {
+		writer.write(columnNames, true);
+		int count = 0;
+		String lastKey = null;
+		PatientIndexEntry[] page;
+		do {
+			page = index.listPatientIndexAfter(lastKey, pageSize);
+			for (int i=0; i<page.length; i+=2) {
+				PatientIndexEntry inv = page[i];
+				PatientIndexEntry fwd = page[i+1];
+				lastKey = inv.key;
+				if (fwd == null) continue;
+
+				//Put in the patient
+				String[] values = new String[columnNames.length];
+				values[0] = fwd.name;
+				values[1] = fwd.id;
+				values[2] = inv.name;
+				values[3] = inv.id;
+				writer.write(values, false);
+				count++;
+
+				//Now list the studies for the patient
+				Study[] studies = index.listStudiesFor(inv.id);
+				for (Study study : studies) {
+					values = new String[columnNames.length];
+					values[4] = study.anonDate;
+					values[5] = study.anonAccession;
+					values[6] = study.phiDate;
+					values[7] = study.phiAccession;
+					writer.write(values, false);
+				}
+			}
+		} while (page.length == 2 * pageSize);
+		logger.debug("Exported "+count+" patients");
+		return count;
+	}
+
+	//Quote a CSV field if it contains a delimiter, a quote, or a line break.
+	static String escape(String value) {
+		if ((value.indexOf(',') < 0) && (value.indexOf('"') < 0)
+				&& (value.indexOf('\n') < 0) && (value.indexOf('\r') < 0)) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
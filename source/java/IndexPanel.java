@@ -11,18 +11,10 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import org.rsna.util.FileUtil;
 import org.rsna.ui.RowLayout;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.util.CellRangeAddress;  
-
 /**
  * A JPanel that provides a user interface for searching the Index.
  */
@@ -50,6 +42,7 @@ public class IndexPanel extends JPanel implements ActionListener {
 		footerPanel.search.addActionListener(this);
 		footerPanel.list.addActionListener(this);
 		footerPanel.save.addActionListener(this);
+		footerPanel.clearInstances.addActionListener(this);
 		searchPanel.searchField.addActionListener(this);
 		this.add(searchPanel, BorderLayout.CENTER);
 		this.add(footerPanel, BorderLayout.SOUTH);
@@ -89,6 +82,38 @@ public class IndexPanel extends JPanel implements ActionListener {
 		else if (source.equals(footerPanel.save)) {
 			listPanel.save();
 		}
+		else if (source.equals(footerPanel.clearInstances)) {
+			clearInstances();
+		}
+	}
+
+	//Remove the record of the imported instances, so instances
+	//which would be skipped as duplicates can be imported again.
+	private void clearInstances() {
+		int option = JOptionPane.showConfirmDialog(
+						this,
+						"Clear the record of imported instances?\n"
+						+ "Instances imported before will no longer be\n"
+						+ "recognized as duplicates.",
+						"Clear Instances",
+						JOptionPane.OK_CANCEL_OPTION);
+		if (option != JOptionPane.OK_OPTION) return;
+		footerPanel.clearInstances.setEnabled(false);
+		final Component parent = this;
+		Thread clearer = new Thread("Index clear instances") {
+			public void run() {
+				final int count = Index.getInstance().clearInstances();
+				SwingUtilities.invokeLater( new Runnable() {
+					public void run() {
+						footerPanel.clearInstances.setEnabled(true);
+						JOptionPane.showMessageDialog(
+							parent, count + " instances cleared", "Clear Instances",
+							JOptionPane.INFORMATION_MESSAGE);
+					}
+				});
+			}
+		};
+		clearer.start();
 	}
 	
 	class HeaderPanel extends Panel {
@@ -178,134 +203,158 @@ public class IndexPanel extends JPanel implements ActionListener {
 			"PHI-PatientName",
 			"PHI-PatientID"
 		};
-		String[] spreadsheetColumnNames = new String[] {
-			"Trial-PatientName",
-			"Trial-PatientID",
-			"PHI-PatientName",
-			"PHI-PatientID",
-			"Trial-StudyDate",
-			"Trial-Accession",
-			"PHI-StudyDate",
-			"PHI-Accession"
-		};
 		JFileChooser chooser = null;
 		int margin = 15;
 
+		JTable table;
+		int pageSize = 100;
+		ExecutorService pageLoader = Executors.newSingleThreadExecutor( new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Index page loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
 		public ListPanel() {
 			super();
 			setBackground(background);
 			setLayout(new BorderLayout());
 			add(new HeaderPanel("Patient Index List", 10, 10), BorderLayout.NORTH);
-			jsp = new JScrollPane();
+			table = new JTable();
+			table.setFont(mono);
+			table.setRowHeight(table.getFontMetrics(mono).getHeight() + 4);
+			table.setShowGrid(false);
+			table.setFillsViewportHeight(true);
+			table.setBackground(background);
+			table.getTableHeader().setFont(mono18);
+			table.getTableHeader().setReorderingAllowed(false);
+			jsp = new JScrollPane(table);
+			jsp.getViewport().setBackground(background);
+			jsp.setBorder(BorderFactory.createEmptyBorder(0, margin, 0, 0));
 			add(jsp, BorderLayout.CENTER);
 			chooser = new JFileChooser();
 			File dir = new File(System.getProperty("user.dir"));
 			chooser.setSelectedFile(new File(dir,"Index.xlsx"));
 		}
 		public void list() {
-			PatientIndexEntry[] entries = Index.getInstance().listPatientIndex();
-			JPanel panel = new JPanel();
-			panel.setLayout(new RowLayout(20,5));
-			panel.setBackground(background);
-			panel.add(Box.createHorizontalStrut(margin));
-			for (int i=0; i<columnNames.length; i++) {
-				panel.add(new ColumnLabel(columnNames[i]));
+			table.setModel(new PatientTableModel());
+			revalidate();
+		}
+
+		//A table model that loads the index a page at a time
+		//as the rows are displayed, so only the visible rows are
+		//ever read and rendered, regardless of the size of the index.
+		//Pages are read on a background thread, so the table never
+		//waits for the index; rows are blank until their page arrives.
+		//All the state of the model is only touched on the event thread.
+		class PatientTableModel extends javax.swing.table.AbstractTableModel {
+			int rowCount;
+			LRUCache<Integer,PatientIndexEntry[]> pages = new LRUCache<Integer,PatientIndexEntry[]>(20);
+			TreeMap<Integer,String> lastKeys = new TreeMap<Integer,String>();
+			HashSet<Integer> loading = new HashSet<Integer>();
+			volatile int lastRequest = 0;
+			public PatientTableModel() {
+				rowCount = Index.getInstance().getPatientCount();
+			}
+			public int getRowCount() {
+				return rowCount;
+			}
+			public int getColumnCount() {
+				return columnNames.length;
 			}
-			panel.add(RowLayout.crlf());
-			for (int i=0; i<entries.length; i+=2) {
-				if ((entries[i] != null) && (entries[i+1] != null) 
-					 && (entries[i].name != null) && (entries[i+1].name != null)
-					   && (entries[i].id != null) && (entries[i+1].id != null)) {
-							panel.add(Box.createHorizontalStrut(margin));
-							panel.add(new Label(entries[i+1].name));
-							panel.add(new Label(entries[i+1].id));
-							panel.add(new Label(entries[i].name));
-							panel.add(new Label(entries[i].id));
-							panel.add(RowLayout.crlf());
+			public String getColumnName(int col) {
+				return columnNames[col];
+			}
+			public Object getValueAt(int row, int col) {
+				PatientIndexEntry[] page = getPage(row / pageSize);
+				if (page == null) return "";
+				int k = 2 * (row % pageSize);
+				if (k + 1 >= page.length) return "";
+				PatientIndexEntry inv = page[k];
+				PatientIndexEntry fwd = page[k+1];
+				String value = null;
+				switch (col) {
+					case 0: value = (fwd != null) ? fwd.name : null; break;
+					case 1: value = (fwd != null) ? fwd.id : null; break;
+					case 2: value = inv.name; break;
+					case 3: value = inv.id; break;
 				}
-				else {
-					if (entries[i] == null) System.out.println("ListPanel.list: entry["+i+"] == null");
-					else {
-						if (entries[i].name == null) System.out.println("ListPanel.list: entry["+i+"].name == null");
-						if (entries[i].id == null) System.out.println("ListPanel.list: entry["+i+"].id == null");
-					}
-					if (entries[i+1] == null) System.out.println("ListPanel.list: entry["+(i+1)+"] == null");
-					else {
-						if (entries[i+1].name == null) System.out.println("ListPanel.list: entry["+(i+1)+"].name == null");
-						if (entries[i+1].id == null) System.out.println("ListPanel.list: entry["+(i+1)+"].id == null");
+				return (value != null) ? value : "";
+			}
+			//Get a page if it is loaded; otherwise start loading it
+			//and return null.
+			PatientIndexEntry[] getPage(int n) {
+				PatientIndexEntry[] page = pages.get(n);
+				if ((page == null) && loading.add(n)) load(n);
+				return page;
+			}
+			//Load a page in the background, continuing from the last key
+			//of the nearest page before it which has been loaded, unless
+			//the page is nearer one end of the index. The last keys are
+			//kept after the pages themselves are evicted. Requests for
+			//pages which have been scrolled past before their turn comes,
+			//as when the scrollbar is dragged, are dropped.
+			void load(final int n) {
+				lastRequest = n;
+				final int first = n * pageSize;
+				final Map.Entry<Integer,String> boundary = lastKeys.floorEntry(n - 1);
+				final int skip = (boundary != null) ? (n - 1 - boundary.getKey().intValue()) * pageSize : first;
+				final boolean fromBoundary = skip < Math.min(first, rowCount - first);
+				pageLoader.execute( new Runnable() {
+					public void run() {
+						PatientIndexEntry[] page = null;
+						if (Math.abs(n - lastRequest) <= 1) {
+							Index index = Index.getInstance();
+							if (fromBoundary) page = index.listPatientIndexAfter(boundary.getValue(), skip, pageSize);
+							else page = index.listPatientIndex(first, pageSize);
+						}
+						final PatientIndexEntry[] result = page;
+						SwingUtilities.invokeLater( new Runnable() {
+							public void run() { loaded(n, result); }
+						});
 					}
-				}
+				});
+			}
+			void loaded(int n, PatientIndexEntry[] page) {
+				loading.remove(n);
+				if (page == null) return;
+				pages.put(n, page);
+				if (page.length == 2 * pageSize) lastKeys.put(n, page[page.length - 2].key);
+				int first = n * pageSize;
+				int last = Math.min(first + pageSize, rowCount) - 1;
+				if (last >= first) fireTableRowsUpdated(first, last);
 			}
-			jsp.setViewportView(panel);
-			revalidate();
 		}
 		public void save() {
-			Index index = Index.getInstance();
-			try {
-				PatientIndexEntry[] entries = index.listPatientIndex();
-				Workbook wb = new XSSFWorkbook();
-				Sheet sheet = wb.createSheet("Index");
-				Row row = sheet.createRow((short)0);
-				CellStyle style = wb.createCellStyle();
-				org.apache.poi.ss.usermodel.Font font = wb.createFont();
-				font.setBold(true);
-				style.setFont(font);
-				for (int i=0; i<spreadsheetColumnNames.length; i++) {
-					Cell cell = row.createCell(i);
-					cell.setCellValue(spreadsheetColumnNames[i]);
-					cell.setCellStyle(style);
-				}		
-				font.setBold(false);
-				style.setFont(font);
-				short rowNumber = 1;
-				for (int i=0; i<entries.length; i+=2) {
-					
-					//Put in the patient
-					row = sheet.createRow(rowNumber++); // was (short)(i/2+1)
-					addCell(row, 0, entries[i+1].name, style);
-					addCell(row, 1, entries[i+1].id, style);
-					addCell(row, 2, entries[i].name, style);
-					addCell(row, 3, entries[i].id, style);
-					
-					//Now list the studies for the patient
-					Study[] studies = index.listStudiesFor(entries[i].id);
-					for (Study study : studies) {
-						row = sheet.createRow(rowNumber++); 
-						addCell(row, 4, study.anonDate, style);
-						addCell(row, 5, study.anonAccession, style);
-						addCell(row, 6, study.phiDate, style);
-						addCell(row, 7, study.phiAccession, style);
+			if (chooser.showSaveDialog(this) != chooser.APPROVE_OPTION) return;
+			final File outputFile = chooser.getSelectedFile();
+			final Component parent = this;
+			//Export off the event thread; the Index is
+			//read a page at a time, so this can take a while.
+			Thread exporter = new Thread("Index export") {
+				public void run() {
+					String message;
+					int type = JOptionPane.INFORMATION_MESSAGE;
+					try {
+						int count = new IndexExporter().export(outputFile);
+						message = count + " patients exported to\n" + outputFile;
 					}
+					catch (Exception ex) {
+						ex.printStackTrace();
+						message = "Unable to export the index to\n" + outputFile;
+						type = JOptionPane.ERROR_MESSAGE;
+					}
+					final String m = message;
+					final int t = type;
+					SwingUtilities.invokeLater( new Runnable() {
+						public void run() {
+							JOptionPane.showMessageDialog(parent, m, "Save", t);
+						}
+					});
 				}
-				for (int i=0; i<8; i++) sheet.autoSizeColumn(i);
-				
-				if (chooser.showSaveDialog(this) == chooser.APPROVE_OPTION) {
-					File outputFile = chooser.getSelectedFile();
-					FileOutputStream fos = new FileOutputStream(outputFile);
-					wb.write(fos);
-					fos.close();
-				}
-			}
-			catch (Exception ex) {
-				ex.printStackTrace();
-			}
-		}
-		private void addCell(Row row, int k, String text, CellStyle style) {
-			Cell cell = row.createCell(k);
-			cell.setCellValue(text);
-			cell.setCellStyle(style);
-		}
-		class Label extends JLabel {
-			public Label(String text) {
-				super(text);
-				setFont(mono);
-			}
-		}
-		class ColumnLabel extends JLabel {
-			public ColumnLabel(String text) {
-				super(text);
-				setFont(mono18);
-			}
+			};
+			exporter.start();
 		}
 	}
 	
@@ -313,6 +362,7 @@ public class IndexPanel extends JPanel implements ActionListener {
 		public JButton search;
 		public JButton list;
 		public JButton save;
+		public JButton clearInstances;
 		public FooterPanel() {
 			super();
 			setBorder(BorderFactory.createBevelBorder(BevelBorder.LOWERED));
@@ -327,6 +377,9 @@ public class IndexPanel extends JPanel implements ActionListener {
 			save = new JButton(" Save ");
 			save.setEnabled(false);
 			add(save);
+			add(Box.createHorizontalStrut(15));
+			clearInstances = new JButton("Clear Instances");
+			add(clearInstances);
 		}
 	}
 	
@@ -0,0 +1,147 @@
+/*-----------------------------------------------------------------
+*  This source software is released under the terms of the
+*  Apache License 2.0 (https://www.apache.org/licenses/LICENSE-2.0)
+*------------------------------------------------------------------*/
+
+package org.jp.deidentifier;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe cache which evicts the least recently used
+ * entries when the total weight of its entries exceeds a limit.
+ * Entries added without a weight have a weight of one, so for such
+ * caches the limit is simply the maximum number of entries.
+ * The cache has its own lock, which is held only for the duration
+ * of each call.
+ */
+public class LRUCache<K,V> {
+
+	LinkedHashMap<K,Entry<V>> map;
+	long maxWeight;
+	long weight = 0;
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+
+	/**
+	 * Class constructor.
+	 * @param maxWeight the maximum total weight of the entries in the cache.
+	 */
+	public LRUCache(long maxWeight) {
+		this.maxWeight = Math.max(maxWeight, 1);
+		map = new LinkedHashMap<K,Entry<V>>(16, 0.75f, true);
+	}
+
+	/**
+	 * Get a value from the cache, counting the hit or miss.
+	 * @param key the key.
+	 * @return the value, or null if the key is not in the cache.
+	 */
+	public synchronized V get(K key) {
+		Entry<V> entry = map.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * Determine whether a key is in the cache, without counting a hit
+	 * or a miss and without changing the order of the entries.
+	 * @param key the key.
+	 * @return true if the key is in the cache.
+	 */
+	public synchronized boolean containsKey(K key) {
+		return map.containsKey(key);
+	}
+
+	/**
+	 * Add a value to the cache with a weight of one.
+	 * @param key the key.
+	 * @param value the value.
+	 */
+	public void put(K key, V value) {
+		put(key, value, 1);
+	}
+
+	/**
+	 * Add a value to the cache, evicting least recently used entries
+	 * as necessary to keep the total weight within the limit. The entry
+	 * being added is never evicted by its own insertion.
+	 * @param key the key.
+	 * @param value the value.
+	 * @param weight the weight of the value.
+	 */
+	public synchronized void put(K key, V value, long weight) {
+		Entry<V> old = map.put(key, new Entry<V>(value, weight));
+		if (old != null) this.weight -= old.weight;
+		this.weight += weight;
+		Iterator<Map.Entry<K,Entry<V>>> it = map.entrySet().iterator();
+		while ((this.weight > maxWeight) && it.hasNext()) {
+			Map.Entry<K,Entry<V>> eldest = it.next();
+			if (eldest.getKey().equals(key)) continue;
+			this.weight -= eldest.getValue().weight;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Remove an entry from the cache.
+	 * @param key the key.
+	 * @return the value which was removed, or null if the key was not in the cache.
+	 */
+	public synchronized V remove(K key) {
+		Entry<V> entry = map.remove(key);
+		if (entry == null) return null;
+		weight -= entry.weight;
+		return entry.value;
+	}
+
+	/**
+	 * Remove all the entries from the cache. The counters are not reset.
+	 */
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		return "size="+map.size()+"; weight="+weight
+				+"; hits="+hits+"; misses="+misses+"; evictions="+evictions;
+	}
+
+	static class Entry<V> {
+		V value;
+		long weight;
+		public Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
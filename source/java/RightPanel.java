@@ -27,6 +27,8 @@ import org.rsna.ui.GeneralFileFilter;
 import org.rsna.ui.SourcePanel;
 import org.w3c.dom.*;
 import org.rsna.util.FileUtil;
+import org.rsna.util.StringUtil;
+import org.apache.log4j.Logger;
 
 /**
  * A JPanel that provides a user interface for the active part of
@@ -36,6 +38,8 @@ import org.rsna.util.FileUtil;
 public class RightPanel extends JPanel
 						implements FileListener, ActionListener, MouseListener  {
 
+	static final Logger logger = Logger.getLogger(RightPanel.class);
+
 	HeaderPanel headerPanel;
 	JPanel centerPanel;
 	FooterPanel footerPanel;
@@ -44,14 +48,10 @@ public class RightPanel extends JPanel
 	ResultsScrollPane resultsPane;
 	JFileChooser chooser = null;
 
+	AnonymizerThread anonymizer = null;
 	File currentSelection = null;
 	String[] currentPath = null;
 	boolean subdirectories = false;
-	boolean forceIVRLE = false;
-	boolean renameToSOPIUID = false;
-	String dicomScriptFile = null;
-	String lookupTableFile = null;
-	IntegerTable integerTable = null;
 	GeneralFileFilter filter = null;
 	Color background = Color.getHSBColor(0.58f, 0.17f, 0.95f);
 
@@ -66,9 +66,6 @@ public class RightPanel extends JPanel
 		Configuration config = Configuration.getInstance();
 		this.properties = config.getProps();
 		this.sourcePanel = sourcePanel;
-		this.dicomScriptFile = config.dicomScriptFile;
-		this.lookupTableFile = config.lookupTableFile;
- 		this.integerTable = config.getIntegerTable();
 		this.background = config.background;
 		this.setLayout(new BorderLayout());
 		headerPanel = new HeaderPanel();
@@ -103,11 +100,14 @@ public class RightPanel extends JPanel
 	public void actionPerformed(ActionEvent event) {
 		Object source = event.getSource();
 		if (source.equals(footerPanel.setOutputDir)) setOutputDir();
-		else if (source.equals(footerPanel.anonymize) && (currentSelection != null)) {
+		else if (source.equals(footerPanel.anonymize) && (currentSelection != null) && (anonymizer == null)) {
 			subdirectories = sourcePanel.getSubdirectories();
 			filter = sourcePanel.getFileFilter();
 			if (source.equals(footerPanel.anonymize)) {
-				new AnonymizerThread().start();
+				//Only one run at a time; runs share the ImportJournal.
+				footerPanel.setRunning(true);
+				anonymizer = new AnonymizerThread();
+				anonymizer.start();
 			}
 		}
 		else Toolkit.getDefaultToolkit().beep();
@@ -123,146 +123,49 @@ public class RightPanel extends JPanel
 	public void mousePressed(MouseEvent e) { }
 	public void mouseReleased(MouseEvent e) { }
 	
-	class AnonymizerThread extends Thread {
+	class AnonymizerThread extends Thread implements ImportEngine.Listener {
 		public AnonymizerThread() {
 			super();
 		}
 		public void run() {
 			resultsPane.clear();
-			anonymize(currentSelection);
-			resultsPane.text.print(Color.black, "\nDone.\n");
-		}
-	}			
-
-	// Anonymize the selected file(s).
-	private void anonymize(File file) {
-		File temp = null;
-		FilterPanel fp = FilterPanel.getInstance();
-		String filterScript = fp.getText().trim();
-		boolean filterSRs = fp.getFilterSRs();
-		boolean filterSCs = fp.getFilterSCs();
-		boolean acceptRFs = fp.getAcceptRFs();
-		
-		boolean filterResult = true;
-		if (file.isFile()) {
-			try {
-				resultsPane.newItem(file.getAbsolutePath());
-				DicomObject dob;
-				if ( ((dob=getDicomObject(file)) != null)
-						&& ( dob.isImage() )
-						&& ( !filterSCs || !dob.isSecondaryCapture() || (acceptRFs && dob.isReformatted()) )
-						&& ( !filterSRs || !dob.isSR() )
-						&& ( filterResult=((filterScript.length() == 0) || dob.matches(filterScript)) ) ) {
-					File outputDir;
-					try { 
-						outputDir = Configuration.getInstance().getOutputDir();
-						outputDir.mkdirs();
-						temp = File.createTempFile("TEMP-", ".dcm", outputDir);
-					}
-					catch (Exception ex) {
-						resultsPane.print(Color.red, "Unable to copy file.\n");
-						if (temp != null) temp.delete();
-						return;
-					}
-					String origPtName = dob.getPatientName();
-					String origPtID = dob.getPatientID();
-					String origStudyDate = dob.getStudyDate();
-					String origAccessionNumber = dob.getAccessionNumber();
-
-					String result = "";
-					DAScript dicomScript = DAScript.getInstance( new File(dicomScriptFile) );
-					LookupTable lookupTable = LookupTable.getInstance(new File(lookupTableFile) );
-					dob.copyTo(temp);
-					result =
-						DICOMAnonymizer.anonymize(
-							temp, temp,
-							dicomScript.toProperties(), lookupTable.getProperties(), integerTable,
-							forceIVRLE, renameToSOPIUID).isOK() ? "" : "failed";;
-
-					//Report the results
-					if (!result.equals("")) {
-						resultsPane.print(Color.red,"Failed\n");
-						if (temp != null) temp.delete();
-					}
-					else {
-						resultsPane.print(Color.black,"OK\n");
-						// Get the spoke name
-						Properties daprops = dicomScript.toProperties();
-						String spokeName = daprops.getProperty("param.SPOKENAME");
-
-						//Figure out where to put the temp file.
-						//It is already in the root of the outputDir.
-						//It needs to go in the appropriate series subdirectory
-						dob = getDicomObject(temp);
-						String anonPtName = dob.getPatientName();
-						String anonPtID = dob.getPatientID();
-						String anonSOPInstanceUID = dob.getSOPInstanceUID();
-						String anonStudyInstanceUID = dob.getStudyInstanceUID();
-						String anonSeriesInstanceUID = dob.getSeriesInstanceUID();
-						String anonStudyDate = dob.getStudyDate();
-						String anonStudyTime = dob.getStudyTime();
-						int k = anonStudyTime.indexOf(".");
-						k = (k >= 0) ? k : anonStudyTime.length();
-						anonStudyTime = anonStudyTime.substring(0,k);
-						String anonSeriesNumber = dob.getSeriesNumber();
-						String anonInstanceNumber = dob.getInstanceNumber();
-						String anonAccessionNumber = dob.getAccessionNumber();
-						GregorianCalendar gc = new GregorianCalendar();
-						int year = gc.get(gc.YEAR);
-						int mon = gc.get(gc.MONTH) + 1;
-						int day = gc.get(gc.DAY_OF_MONTH);
-						String date = String.format("%4d%02d%02d", year, mon, day);
-						File imgdir = new File(outputDir, 
-										  spokeName+"-DataUpload-"+date + "/"
-										+ anonPtName + "/" 
-										+ "Study-"+anonStudyDate+"T"+anonStudyTime + "/" 
-										+ "Series-"+anonSeriesNumber);
-						imgdir.mkdirs();
-						File dest = new File(imgdir, "Image-"+anonInstanceNumber+".dcm");
-
-						//Move the file to the correct directory.
-						if (dest.exists()) dest.delete();
-						temp.renameTo(dest);
-
-						//Update the index
-						Index index = Index.getInstance();
-						index.addPatient(origPtName, origPtID, anonPtName, anonPtID);
-						index.addStudy(origPtID, origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
-					}
-				}
-				else {
-					if (dob == null) resultsPane.println(Color.red,"    File rejected (not a DICOM file)");
-					else if (!dob.isImage()) resultsPane.println(Color.red,"    File rejected (not an image)");
-					else if (filterSRs && dob.isSR()) resultsPane.println(Color.red,"    File rejected (Structured Report)");
-					else if (filterSCs && dob.isSecondaryCapture()) resultsPane.println(Color.red,"    File rejected (Secondary Capture)");
-					else if (!filterResult) resultsPane.println(Color.red,"    File rejected (filter)");
-					else resultsPane.println(Color.red,"    File rejected (unknown reason)");
+			final ImportProgress progress = new ImportProgress();
+			javax.swing.Timer timer = new javax.swing.Timer(500, new ActionListener() {
+				public void actionPerformed(ActionEvent event) {
+					footerPanel.showProgress(progress);
 				}
-			}
-			catch (Exception ex) {
-				StringWriter sw = new StringWriter();
-				ex.printStackTrace(new PrintWriter(sw));
-				resultsPane.print(Color.red,"\n"+sw.toString()+"\n");
-			}
-		}
-		else {
+			});
+			timer.start();
 			try {
-				File[] files = file.listFiles(filter);
-				for (File f : files) {
-					if (f.isFile() || subdirectories) anonymize(f);
-				}
+				progress.startPrescan(new File[] { currentSelection }, subdirectories, filter);
+				FilterPanel fp = FilterPanel.getInstance();
+				ImportEngine engine = new ImportEngine(
+							Configuration.getInstance().getImportThreads(), this);
+				engine.setFilter(fp.getText(), fp.getFilterSRs(), fp.getFilterSCs(), fp.getAcceptRFs());
+				engine.setDedup(fp.getDedup());
+				engine.setProgress(progress);
+				engine.importFiles(currentSelection, subdirectories, filter);
+				ImportJournal.getInstance().clear();
 			}
-			catch (Exception ex) {
-				resultsPane.print(Color.red, file+" appears to be a corrupt directory\n");
+			finally {
+				progress.finish();
+				timer.stop();
+				//Close the log before another run can be started.
+				resultsPane.finish();
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						footerPanel.showProgress(progress);
+						footerPanel.setRunning(false);
+						anonymizer = null;
+					}
+				});
 			}
 		}
+		public void fileProcessed(ImportResult result) {
+			resultsPane.report(result);
+		}
 	}
-	
-	private DicomObject getDicomObject(File file) {
-		try { return new DicomObject(file); }
-		catch (Exception ex) { return null; }
-	}
-	
+
 	private void setOutputDir() {
 		Configuration config = Configuration.getInstance();
 		if (chooser == null) {
@@ -276,30 +179,148 @@ public class RightPanel extends JPanel
 		}
 	}
 	
-	//Class to display the results of the processing
-	class ResultsScrollPane extends JScrollPane {
+	//Class to display the results of the processing.
+	//The worker threads never touch the text component. Lines are
+	//collected in a buffer and appended to the document in batches
+	//by a timer on the event dispatch thread, and only the most recent
+	//lines are kept in the document. The complete log of each run is
+	//written to a file in the logs directory.
+	class ResultsScrollPane extends JScrollPane implements ActionListener {
 		public ColorPane text;
 		int count;
 		String margin = "       ";
+		int maxLines;
+		LinkedList<Line> pending = new LinkedList<Line>();
+		javax.swing.Timer timer;
+		boolean clearDisplay = false;
+		Writer log = null;
+		File logFile = null;
 		public ResultsScrollPane() {
 			super();
 			text = new ColorPane();
 			setViewportView(text);
 			count = 0;
+			maxLines = Math.max( StringUtil.getInt( properties.getProperty("resultsLines"), 5000 ), 100 );
+			timer = new javax.swing.Timer(250, this);
+			timer.start();
 		}
-		public void clear() {
+		//Start a new run, clearing the display and opening a new log file.
+		public synchronized void clear() {
 			count = 0;
-			text.setText("");
+			pending.clear();
+			clearDisplay = true;
+			closeLog();
+			try {
+				File logs = new File("logs");
+				logs.mkdirs();
+				String name = String.format("import-%tY%<tm%<td-%<tH%<tM%<tS.log", new Date());
+				logFile = new File(logs, name);
+				log = new BufferedWriter(
+						new OutputStreamWriter(
+							new FileOutputStream(logFile), FileUtil.utf8));
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to create the import log", ex);
+				log = null;
+				logFile = null;
+			}
+		}
+		//End the run, writing the rest of the log file.
+		public synchronized void finish() {
+			add(Color.black, "\nDone.\n");
+			if (logFile != null) {
+				add(Color.black, "\nThe complete log is in " + logFile.getAbsolutePath() + "\n");
+			}
+			closeLog();
 		}
-		public void newItem(String s) {
+		private void closeLog() {
+			if (log != null) {
+				try { log.close(); }
+				catch (Exception ignore) { }
+			}
+			log = null;
+		}
+		public synchronized void newItem(String s) {
 			count++;
-			text.print(Color.black, String.format("%5d: %s\n", count, s));
+			add(Color.black, String.format("%5d: %s\n", count, s));
+		}
+		public synchronized void print(Color c, String s) {
+			add(c, margin + s);
 		}
-		public void print(Color c, String s) {
-			text.print(c, margin + s);
+		public synchronized void println(Color c, String s) {
+			add(c, margin + s + "\n");
 		}
-		public void println(Color c, String s) {
-			text.print(c, margin + s + "\n");
+		//Queue text for the display and write it to the log file.
+		private void add(Color c, String s) {
+			pending.add(new Line(c, s));
+			if (log != null) {
+				try { log.write(s); }
+				catch (Exception ex) {
+					logger.warn("Unable to write the import log", ex);
+					closeLog();
+				}
+			}
+		}
+		//Report the result of one file. This is synchronized so
+		//the lines for a file are not interleaved with those of
+		//other files being processed by other worker threads.
+		public synchronized void report(ImportResult result) {
+			newItem(result.getFile().getAbsolutePath());
+			if (result.isOK()) print(Color.black, "OK\n");
+			else if (result.isFAILED()) print(Color.red, result.getMessage()+"\n");
+			else if (result.isREJECTED()) println(Color.red, "    File rejected ("+result.getMessage()+")");
+			else if (result.isSKIPPED()) println(Color.blue, "    File skipped ("+result.getMessage()+")");
+			else if (result.isDUPLICATE()) println(Color.blue, "    Duplicate skipped ("+result.getMessage()+")");
+			else print(Color.red, "\n"+result.getMessage()+"\n");
+		}
+		//Append the buffered text to the display. This is called by
+		//the timer on the event dispatch thread. Consecutive text of the
+		//same color is appended in one operation.
+		public void actionPerformed(ActionEvent event) {
+			LinkedList<Line> lines;
+			synchronized (this) {
+				if (clearDisplay) {
+					text.setText("");
+					clearDisplay = false;
+				}
+				if (pending.isEmpty()) return;
+				lines = pending;
+				pending = new LinkedList<Line>();
+				if (log != null) {
+					try { log.flush(); }
+					catch (Exception ignore) { }
+				}
+			}
+			StringBuffer sb = new StringBuffer();
+			Color color = null;
+			for (Line line : lines) {
+				if ((color != null) && !line.color.equals(color)) {
+					text.print(color, sb.toString());
+					sb.setLength(0);
+				}
+				color = line.color;
+				sb.append(line.text);
+			}
+			if (color != null) text.print(color, sb.toString());
+			trim();
+		}
+		//Remove the oldest lines from the display, keeping maxLines.
+		private void trim() {
+			javax.swing.text.Document doc = text.getDocument();
+			javax.swing.text.Element root = doc.getDefaultRootElement();
+			int excess = root.getElementCount() - maxLines;
+			if (excess > 0) {
+				try { doc.remove(0, root.getElement(excess - 1).getEndOffset()); }
+				catch (Exception ex) { logger.warn("Unable to trim the results display", ex); }
+			}
+		}
+		class Line {
+			Color color;
+			String text;
+			public Line(Color color, String text) {
+				this.color = color;
+				this.text = text;
+			}
 		}
 	}
 
@@ -324,16 +345,33 @@ public class RightPanel extends JPanel
 		}
 	}
 
-	//Class to display the footer with the action buttons and
-	//the checkbox for changing the names of processed files.
+	//Class to display the footer with the progress of the
+	//current import and the action buttons.
 	class FooterPanel extends JPanel {
 		public JButton anonymize;
 		public JButton setOutputDir;
+		public JProgressBar progressBar;
+		public JLabel progressLabel;
 		public FooterPanel() {
 			super();
 			this.setLayout(new BoxLayout(this,BoxLayout.Y_AXIS));
 			this.setBackground(background);
 
+			progressBar = new JProgressBar(0, 1000);
+			progressBar.setStringPainted(true);
+			progressBar.setString("");
+			progressLabel = new JLabel(" ");
+
+			Box rowA = new Box(BoxLayout.X_AXIS);
+			rowA.add(Box.createHorizontalStrut(17));
+			rowA.add(progressBar);
+			rowA.add(Box.createHorizontalStrut(17));
+
+			Box rowP = new Box(BoxLayout.X_AXIS);
+			rowP.add(Box.createHorizontalStrut(17));
+			rowP.add(progressLabel);
+			rowP.add(Box.createHorizontalGlue());
+
 			anonymize = new JButton("Import");
 			setOutputDir = new JButton("Set Submissions Directory");
 
@@ -351,8 +389,30 @@ public class RightPanel extends JPanel
 			anonymize.setPreferredSize(anSize);
 			setOutputDir.setPreferredSize(anSize);
 
+			this.add(rowA);
+			this.add(rowP);
+			this.add(Box.createVerticalStrut(4));
 			this.add(rowB);
 		}
+		//Disable the controls while an import is running.
+		public void setRunning(boolean running) {
+			anonymize.setEnabled(!running);
+			setOutputDir.setEnabled(!running);
+		}
+		//Display the progress of an import. This must be called
+		//on the event dispatch thread.
+		public void showProgress(ImportProgress progress) {
+			if (progress.isCounting()) {
+				progressBar.setIndeterminate(true);
+				progressBar.setString(progress.getFileCount() + " files (counting)");
+			}
+			else {
+				progressBar.setIndeterminate(false);
+				progressBar.setValue((int)(1000 * progress.getFractionDone()));
+				progressBar.setString(progress.getFileCount() + " of " + progress.getTotalFiles() + " files");
+			}
+			progressLabel.setText(progress.toString());
+		}
 	}
 
 }
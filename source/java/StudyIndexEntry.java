@@ -17,8 +17,13 @@ public class StudyIndexEntry implements Serializable, Comparable<StudyIndexEntry
 		this.studies = new HashSet<Study>();
 	}
 	
-	public void add(Study study) {
-		studies.add(study);
+	/**
+	 * Add a study to the entry.
+	 * @param study the study to add.
+	 * @return true if the study was not already in the entry.
+	 */
+	public boolean add(Study study) {
+		return studies.add(study);
 	}
 	
 	public int compareTo(StudyIndexEntry ie) {
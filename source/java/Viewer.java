@@ -27,13 +27,15 @@ import org.dcm4che.dict.VRs;
 /**
  * A JPanel that provides a DICOM viewer.
  */
-public class Viewer extends JPanel implements ActionListener, FileListener, MouseWheelListener, KeyEventDispatcher, ChangeListener {
+public class Viewer extends JPanel implements ActionListener, DicomLoader.Listener, MouseWheelListener, KeyEventDispatcher, ChangeListener {
 
 	static final Logger logger = Logger.getLogger(Viewer.class);
 
 	JFileChooser saveAsChooser = null;
 	int jpegQuality = -1;
 	DicomObject dicomObject = null;
+	FrameRenderer renderer = null;
+	int direction = 1;
     ButtonPanel buttonPanel;
     ImagePanel imagePanel;
     int currentFrame = 0;
@@ -147,8 +149,10 @@ public class Viewer extends JPanel implements ActionListener, FileListener, Mous
 				else if (buttonPanel.wwwl.isPressed()) {
 					buttonPanel.wl.setValue(originalWL + deltaY);
 					buttonPanel.ww.setValue(originalWW + deltaX);
+					//A change of window only repeats the lookup,
+					//so the image can follow the mouse closely.
 					long time = System.currentTimeMillis();
-					if ((time - startTime) > 500) {
+					if ((time - startTime) > 40) {
 						displayFrame(currentFrame, currentZoom);
 						startTime = System.currentTimeMillis();
 					}
@@ -181,39 +185,43 @@ public class Viewer extends JPanel implements ActionListener, FileListener, Mous
 	}
 
 	/**
-	 * The FileListener implementation.
-	 * @param event the event containing the current file selection.
+	 * The DicomLoader.Listener implementation. The object is parsed on
+	 * the loader's thread, and its first frame is decoded there too,
+	 * after the object is delivered, and displayed when it is ready.
+	 * @param file the selected file.
+	 * @param dob the object parsed from the file, or null if the file
+	 * could not be parsed.
 	 */
-	public void fileEventOccurred(FileEvent event) {
-		if (event.isSELECT()) {
-			try {
-				File file = event.getFile();
-				if (file.isFile()) {
-					dicomObject = new DicomObject(file);
-					if (dicomObject.isImage()) {
-						nFrames = Math.max(dicomObject.getNumberOfFrames(), 1);
-						setWWWL(dicomObject);
-						currentFrame = 0;
-						currentZoom = 1.0;
-						jsp.getHorizontalScrollBar().setValue(0);
-						jsp.getVerticalScrollBar().setValue(0);
-						fitToWindow();
-						buttonPanel.setFrameNumber();
-						footerPanel.setFile(file);
-						buttonPanel.clearButtons();
-						setTheCursor();
-						return;
-					}
-				}
-			}
-			catch (Exception unable) {
-				dicomObject = null;
-				imagePanel.clear();
+	public void dicomObjectLoaded(File file, DicomObject dob) {
+		try {
+			if (dob == null) throw new Exception("Unable to parse "+file);
+			dicomObject = dob;
+			if (dicomObject.isImage()) {
+				renderer = new FrameRenderer(dicomObject);
+				nFrames = Math.max(dicomObject.getNumberOfFrames(), 1);
+				setWWWL(dicomObject);
+				currentFrame = 0;
+				currentZoom = 1.0;
+				jsp.getHorizontalScrollBar().setValue(0);
+				jsp.getVerticalScrollBar().setValue(0);
+				//Do not leave the image of the previous file
+				//on display while the frame is decoded.
+				if (!FrameCache.getInstance().isCached(dicomObject, 0)) imagePanel.clear();
+				fitToWindow();
 				buttonPanel.setFrameNumber();
+				footerPanel.setFile(file);
+				buttonPanel.clearButtons();
+				setTheCursor();
 			}
 		}
+		catch (Exception unable) {
+			FrameCache.getInstance().cancelPrefetch();
+			dicomObject = null;
+			imagePanel.clear();
+			buttonPanel.setFrameNumber();
+		}
 	}
-	
+
 	private void setWWWL(DicomObject dob) {
 		int ww, wl;
 		Point p = getWWWL(dob.getDataset());
@@ -353,11 +361,32 @@ public class Viewer extends JPanel implements ActionListener, FileListener, Mous
 		}
 	}
 
-	//Open an image, given the file.
+	//Display a frame. If the frame has not been decoded, it is decoded
+	//in the background and displayed when it is ready, unless another
+	//frame or another file has been selected by then.
 	private void displayFrame(int frame, double zoom) {
+		if (dicomObject == null) return;
 		if (frame < 0) frame = 0;
 		if (frame >= nFrames) frame = nFrames - 1;
+		if (frame != currentFrame) direction = (frame > currentFrame) ? 1 : -1;
 		currentFrame = frame;
+		if (!FrameCache.getInstance().isCached(dicomObject, frame)) {
+			final DicomObject dob = dicomObject;
+			final int f = frame;
+			final double z = zoom;
+			DicomLoader.getInstance().decode(dob, frame, new Runnable() {
+				public void run() {
+					if ((dob == dicomObject) && (f == currentFrame)) showFrame(f, z);
+				}
+			});
+			buttonPanel.setFrameNumber();
+			return;
+		}
+		showFrame(frame, zoom);
+	}
+
+	//Render and display a frame.
+	private void showFrame(int frame, double zoom) {
 		try {
 			int width = dicomObject.getColumns();
 			int desiredWidth = (int)(width * zoom);
@@ -366,7 +395,12 @@ public class Viewer extends JPanel implements ActionListener, FileListener, Mous
 			double scale = (double)desiredWidth / (double)width;
 			int ww = buttonPanel.ww.getValue();
 			int wl = buttonPanel.wl.getValue();
-			BufferedImage bufferedImage = dicomObject.getScaledAndWindowLeveledBufferedImage(frame, scale, wl, ww);
+			//Decoded frames are cached, so stepping through the frames
+			//or changing the window or the zoom only repeats the rendering.
+			FrameCache frameCache = FrameCache.getInstance();
+			BufferedImage frameImage = frameCache.getFrame(dicomObject, frame);
+			BufferedImage bufferedImage = renderer.render(frameImage, scale, wl, ww);
+			frameCache.prefetch(dicomObject, frame, nFrames, direction);
 			imagePanel.saveScrollState();
 			currentZoom = (double)bufferedImage.getWidth() / (double)width;
 			imagePanel.setImage(bufferedImage);
@@ -425,22 +459,31 @@ public class Viewer extends JPanel implements ActionListener, FileListener, Mous
 				File dir = saveAsChooser.getSelectedFile();
 				String name = dicomObject.getFile().getName();
 				if (name.toLowerCase().endsWith(".dcm")) name = name.substring(0, name.length()-4);
+				int[] frameArray = new int[16];
+				int k = 0;
 				int lastFrame = 0;
 				for (Integer frameInteger : frames) {
 					int nextFrame = frameInteger.intValue();
 					if (nextFrame > 0) {
-						saveFrame(dir, name, nextFrame, width, jpegQuality);
+						frameArray = append(frameArray, k++, nextFrame-1);
 						lastFrame = nextFrame;
 					}
 					else if (nextFrame < 0) {
 						nextFrame = -nextFrame;
 						for (int f=lastFrame+1; f<=nextFrame; f++) {
-							saveFrame(dir, name, f, width, jpegQuality);
+							frameArray = append(frameArray, k++, f-1);
 						}
 						lastFrame = nextFrame;
 					}
 				}
-				JOptionPane.showMessageDialog(this, "Success");
+				frameArray = Arrays.copyOf(frameArray, k);
+				double scale = (double)width / (double)dicomObject.getColumns();
+				FrameExporter exporter =
+					new FrameExporter(
+						dicomObject.getFile(), frameArray, dir, name, scale,
+						buttonPanel.wl.getValue(), buttonPanel.ww.getValue(), jpegQuality);
+				exporter.start(Configuration.getInstance().getExportThreads());
+				monitorExport(exporter);
 			}
 		}
 		catch (Exception e) {
@@ -448,17 +491,53 @@ public class Viewer extends JPanel implements ActionListener, FileListener, Mous
 			JOptionPane.showMessageDialog(this, "Error:\n"+e.getMessage());
 		}
 	}
-	
-	private void saveFrame(File dir, String name, int frame, int width, int jpegQuality) {
-		String filename = name + "["+frame+"].jpeg";
-		File file = new File(dir, filename);
-		int ww = buttonPanel.ww.getValue();
-		int wl = buttonPanel.wl.getValue();
-		int dobWidth = dicomObject.getColumns();
-		double scale = (double)width / (double)dobWidth;
-		dicomObject.saveAsWindowLeveledJPEG(file, frame-1, scale, wl, ww, jpegQuality);
+
+	//Set an element of an array, growing the array if necessary.
+	private static int[] append(int[] array, int index, int value) {
+		if (index >= array.length) array = Arrays.copyOf(array, 2 * index);
+		array[index] = value;
+		return array;
 	}
-	
+
+	//Show the progress of an export in a dialog with a cancel button,
+	//and report the result when it is done.
+	private void monitorExport(final FrameExporter exporter) {
+		final ProgressMonitor monitor =
+			new ProgressMonitor(this, "Saving frames as JPEG", "", 0, exporter.getFrameCount());
+		monitor.setMillisToDecideToPopup(0);
+		monitor.setMillisToPopup(250);
+		final javax.swing.Timer timer = new javax.swing.Timer(100, null);
+		timer.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				if (monitor.isCanceled()) exporter.cancel();
+				int n = exporter.getProcessedCount();
+				monitor.setNote(n + " of " + exporter.getFrameCount() + " frames");
+				monitor.setProgress(n);
+				if (exporter.isDone()) {
+					timer.stop();
+					monitor.close();
+					reportExport(exporter);
+				}
+			}
+		});
+		timer.start();
+	}
+
+	private void reportExport(FrameExporter exporter) {
+		int saved = exporter.getSavedCount();
+		int failed = exporter.getFailedCount();
+		if (failed > 0) {
+			JOptionPane.showMessageDialog(this,
+				"Saved "+saved+" of "+exporter.getFrameCount()+" frames.\n"
+				+ failed+" failed.\n\nError:\n"+exporter.getError());
+		}
+		else if (exporter.isCancelled()) {
+			JOptionPane.showMessageDialog(this,
+				"Cancelled after "+saved+" of "+exporter.getFrameCount()+" frames.");
+		}
+		else JOptionPane.showMessageDialog(this, "Success");
+	}
+
 	class SaveAsJPEGDialog extends DialogPanel {
 		public SaveAsJPEGDialog(int frame, int nFrames, int width) {
 			super();